@@ -0,0 +1,165 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes segments on to another sink from a separate writer thread, so
+ * formatting and writing them overlaps with drawing. Segments are handed
+ * over in batches of a few thousand, so the two threads only meet once
+ * per batch, and batches are reused once the writer is done with them.
+ * The other sink gets the segments in the order they were accepted.
+ *
+ * Whenever the writer runs out of work it flushes the other sink, so
+ * output keeps appearing while a slow program is still running.
+ */
+public class AsyncSegmentSink implements SegmentSink {
+    private static final int BATCH = 4096;  // segments per batch
+    private static final int BATCHES = 4;   // batches besides the one being filled
+
+    private final SegmentSink target;
+    private final BlockingQueue<Batch> filled = new ArrayBlockingQueue<>(BATCHES + 1);
+    private final BlockingQueue<Batch> free = new ArrayBlockingQueue<>(BATCHES + 1);
+    private final Semaphore flushed = new Semaphore(0);
+    private volatile Throwable failure;  // what stopped the writer, if anything
+    private Batch batch;                 // batch being filled
+
+    public AsyncSegmentSink(SegmentSink target) {
+        this.target = target;
+        for (int i = 0; i < BATCHES; i++) {
+            free.add(new Batch());
+        }
+        batch = new Batch();
+
+        Thread writer = new Thread(this::write, "segment writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void accept(String color, double x1, double y1, double x2, double y2) {
+        Batch b = batch;
+        int n = b.size;
+        b.colors[n] = color;
+        b.coords[4 * n] = x1;
+        b.coords[4 * n + 1] = y1;
+        b.coords[4 * n + 2] = x2;
+        b.coords[4 * n + 3] = y2;
+        b.size = n + 1;
+        if (b.size == BATCH) {
+            handOver();
+        }
+    }
+
+    /**
+     * Forks the other sink, so that forked parts are still formatted by
+     * the threads that draw them. Forking must not touch the other sink's
+     * own state, which holds for all sinks here.
+     */
+    public SegmentSink fork() {
+        return target.fork();
+    }
+
+    public void join(SegmentSink part) {
+        batch.part = part;
+        handOver();
+    }
+
+    /**
+     * Waits until the writer has passed on everything accepted so far
+     * and flushed the other sink.
+     */
+    public void flush() {
+        batch.flush = true;
+        handOver();
+        try {
+            flushed.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while flushing", e);
+        }
+        check();
+    }
+
+    /**
+     * Gives the current batch to the writer and takes a free one.
+     */
+    private void handOver() {
+        check();
+        filled.add(batch);  // never full: there are only BATCHES + 1 batches
+        try {
+            Batch next;
+            while ((next = free.poll(10, TimeUnit.MILLISECONDS)) == null) {
+                check();
+            }
+            batch = next;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while handing over segments", e);
+        }
+    }
+
+    /**
+     * Rethrows whatever stopped the writer.
+     */
+    private void check() {
+        Throwable e = failure;
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        if (e != null) {
+            throw new IllegalStateException("segment writer failed", e);
+        }
+    }
+
+    /**
+     * The writer thread: passes on batches until something goes wrong.
+     */
+    private void write() {
+        try {
+            while (true) {
+                Batch b = filled.take();
+                double[] coords = b.coords;
+                for (int i = 0; i < b.size; i++) {
+                    target.accept(b.colors[i], coords[4 * i], coords[4 * i + 1],
+                            coords[4 * i + 2], coords[4 * i + 3]);
+                }
+                if (b.part != null) {
+                    target.join(b.part);
+                }
+                boolean flush = b.flush || filled.isEmpty();
+                boolean waited = b.flush;
+
+                b.size = 0;
+                b.part = null;
+                b.flush = false;
+                free.add(b);
+
+                if (flush) {
+                    target.flush();
+                }
+                if (waited) {
+                    flushed.release();
+                }
+            }
+        } catch (Throwable e) {
+            failure = e;
+            flushed.release();
+        }
+    }
+
+    /**
+     * Segments on their way to the writer, stored as parallel arrays.
+     * A batch can also carry a forked part to join after its segments,
+     * and a request to flush.
+     */
+    private static class Batch {
+        final String[] colors = new String[BATCH];
+        final double[] coords = new double[4 * BATCH];  // x1 y1 x2 y2 of each segment
+        int size;
+        SegmentSink part;
+        boolean flush;
+    }
+}
@@ -0,0 +1,255 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs many programs in one JVM, spread over the cores with a
+ * work-stealing pool. Every program gets its own Leona and its own output
+ * file, holding exactly what Main would print for it (the segments, or the
+ * syntax error message). A program that fails only fails itself; failures
+ * are reported on standard error, in the order the files were given.
+ * At the end a summary of all files is printed.
+ *
+ * Usage: java Batch [--out DIR] [--threads N] [--compensated] DIR|GLOB...
+ *   DIR             run every file in the directory
+ *   GLOB            run the files matching a pattern such as progs/*.txt
+ *   --out DIR       where output files go, named after the input file with
+ *                   ".out" added (default: out)
+ *   --threads N     run N programs at a time (default: one per core)
+ *   --compensated   accumulate positions with compensated summation
+ *
+ * The exit status is 1 if any program failed other than by a syntax
+ * error, as Main's would be.
+ */
+public class Batch {
+    private final Path outputs;
+    private final boolean compensated;
+
+    public Batch(Path outputs, boolean compensated) {
+        this.outputs = outputs;
+        this.compensated = compensated;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path outputs = Paths.get("out");
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean compensated = false;
+        List<Path> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--out")) {
+                outputs = Paths.get(args[++i]);
+            } else if (args[i].equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--compensated")) {
+                compensated = true;
+            } else {
+                files.addAll(expand(args[i]));
+            }
+        }
+
+        files = new ArrayList<>(new LinkedHashSet<>(files));  // a file named twice is run once
+        Set<Path> names = new HashSet<>();
+        for (Path file : files) {
+            if (!names.add(file.getFileName())) {
+                System.err.println("two input files are named " + file.getFileName());
+                System.exit(1);
+            }
+        }
+        Files.createDirectories(outputs);
+
+        Batch batch = new Batch(outputs, compensated);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+
+        Result total = new Result(null);
+        int syntaxErrors = 0;
+        int failures = 0;
+        for (Result result : batch.run(files, pool)) {
+            total.add(result);
+            if (result.syntaxError) {
+                syntaxErrors++;
+            } else if (result.error != null) {
+                failures++;
+            }
+            if (result.error != null) {
+                System.err.println(result.file + ": " + result.error);
+            }
+        }
+        long wall = System.nanoTime() - start;
+
+        System.out.println("files    " + files.size() + " (" + syntaxErrors + " syntax errors, "
+                + failures + " failed)");
+        System.out.println("tokens   " + total.tokens);
+        System.out.println("segments " + total.segments);
+        System.out.println("time     lex " + seconds(total.lex) + ", parse " + seconds(total.parse)
+                + ", compile " + seconds(total.compile) + ", run " + seconds(total.run)
+                + " (summed over threads); wall " + seconds(wall));
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The files named by a command line argument: the files in a
+     * directory, or the files matching a glob pattern, sorted by name.
+     */
+    private static List<Path> expand(String argument) throws IOException {
+        Path path = Paths.get(argument);
+        List<Path> files = new ArrayList<>();
+
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                for (Path entry : entries) {
+                    if (Files.isRegularFile(entry)) {
+                        files.add(entry.normalize());
+                    }
+                }
+            }
+        } else if (argument.matches(".*[*?\\[{].*")) {
+            Path directory = path.getParent() != null ? path.getParent() : Paths.get(".");
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + path.getFileName());
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (Files.isRegularFile(entry) && matcher.matches(entry.getFileName())) {
+                        files.add(entry.normalize());
+                    }
+                }
+            }
+        } else {
+            files.add(path.normalize());
+        }
+
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Runs the programs on the pool and returns their results, in the
+     * order of the files. A task that fails anyway gets a result saying
+     * so, and the others are still waited for.
+     */
+    public List<Result> run(List<Path> files, ForkJoinPool pool) {
+        List<ForkJoinTask<Result>> tasks = new ArrayList<>();
+        for (Path file : files) {
+            tasks.add(pool.submit(() -> process(file)));
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                results.add(tasks.get(i).join());
+            } catch (RuntimeException | Error e) {
+                Result failed = new Result(files.get(i));
+                failed.error = e.toString();
+                results.add(failed);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Runs one program and writes its output file. Never throws: whatever
+     * goes wrong is recorded in the result.
+     */
+    public Result process(Path file) {
+        Result result = new Result(file);
+        Path output = outputs.resolve(file.getFileName() + ".out");
+
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long time = System.nanoTime();
+            Lexer lexer;
+            try (InputStream in = Files.newInputStream(file)) {
+                lexer = new Lexer(in);  // all at once, so lexing can be timed on its own
+                result.tokens = lexer.tokens.size();
+            } catch (NumberFormatException e) {
+                // Main scans lazily, so a syntax error before the bad number
+                // is what it reports; scanning lazily again finds out which
+                lexer = new Lexer(file);
+            }
+            result.lex = System.nanoTime() - time;
+
+            time = System.nanoTime();
+            ParseTree tree;
+            try {
+                tree = new Parser(lexer).parse();
+            } catch (SyntaxError e) {
+                result.syntaxError = true;
+                result.error = e.getMessage();
+                ByteBuffer message = ByteBuffer.wrap((e.getMessage() + System.lineSeparator()).getBytes());
+                while (message.hasRemaining()) {
+                    out.write(message);
+                }
+                return result;
+            } finally {
+                result.parse = System.nanoTime() - time;
+            }
+
+            time = System.nanoTime();
+            Program program = Program.compile(tree);
+            result.compile = System.nanoTime() - time;
+
+            time = System.nanoTime();
+            CountingSegmentSink sink = new CountingSegmentSink(new TextSegmentSink(out));
+            Leona leona = new Leona(0, 0, 0, true, "#0000FF", sink);
+            leona.compensated = compensated;
+            program.run(leona);
+            sink.flush();
+            result.segments = sink.segments;
+            result.run = System.nanoTime() - time;
+        } catch (IOException | RuntimeException e) {
+            result.error = e.toString();
+        } catch (StackOverflowError | OutOfMemoryError e) {
+            // nesting too deep to parse, or a program too big for memory;
+            // it fails alone, like any other broken program
+            result.error = e.toString();
+        }
+        return result;
+    }
+
+    private static String seconds(long nanos) {
+        return String.format("%.3f s", nanos / 1e9);
+    }
+
+    /**
+     * What happened to one program, or the sum over many.
+     */
+    public static class Result {
+        public final Path file;
+        public long tokens;
+        public long segments;
+        public long lex, parse, compile, run;  // time in each phase, in nanoseconds
+        public boolean syntaxError;
+        public String error;                    // what went wrong, or null
+
+        public Result(Path file) {
+            this.file = file;
+        }
+
+        public void add(Result other) {
+            tokens += other.tokens;
+            segments += other.segments;
+            lex += other.lex;
+            parse += other.parse;
+            compile += other.compile;
+            run += other.run;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes segments in a compact binary format instead of text.
+ *
+ * The layout (all numbers little-endian) is:
+ *
+ *   header   "LSEG", int version, int flags, long segment count
+ *   palette  int n, then n colors as (byte length, ASCII characters)
+ *   records  int palette index, then x1 y1 x2 y2 as doubles
+ *            (or as floats if FLOAT32 is set in flags)
+ *
+ * Every record has the same width, so records can be indexed directly.
+ * The segment count is filled in on flush when the channel is a regular
+ * file; on pipes and other channels it stays -1 and readers go until the
+ * end of input.
+ * All colors must be in the palette given to the constructor.
+ */
+public class BinarySegmentSink implements SegmentSink {
+    public static final byte[] MAGIC = { 'L', 'S', 'E', 'G' };
+    public static final int VERSION = 1;
+    public static final int FLOAT32 = 1;      // flag: coordinates are floats
+    public static final int COUNT_OFFSET = 12;  // position of the segment count in the header
+
+    private final WritableByteChannel channel;
+    private ByteBuffer buffer;
+    private final boolean float32;
+    private final boolean seekable;  // whether the header can be patched afterwards
+    private final Map<String, Integer> palette;
+    private long segments;
+    private String lastColor;  // color of the previous segment
+    private int lastIndex;     // its palette index
+
+    public BinarySegmentSink(WritableByteChannel channel, String[] colors, boolean float32) {
+        this(channel, colors, float32, 1 << 20);
+    }
+
+    public BinarySegmentSink(WritableByteChannel channel, String[] colors, boolean float32,
+            int bufferSize) {
+        this.channel = channel;
+        this.float32 = float32;
+        this.seekable = seekable(channel);
+        palette = new HashMap<>();
+        buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.put(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(float32 ? FLOAT32 : 0);
+        buffer.putLong(-1);
+        buffer.putInt(colors.length);
+        for (int i = 0; i < colors.length; i++) {
+            byte[] bytes = colors[i].getBytes(StandardCharsets.US_ASCII);
+            if (buffer.remaining() < 1 + bytes.length) {
+                drain();
+            }
+            buffer.put((byte) bytes.length);
+            buffer.put(bytes);
+            palette.put(colors[i], i);
+        }
+    }
+
+    /**
+     * Creates a sink that keeps records for the parent's palette in memory,
+     * without a header, to be joined to the parent later.
+     */
+    private BinarySegmentSink(BinarySegmentSink parent) {
+        channel = null;
+        float32 = parent.float32;
+        seekable = false;
+        palette = parent.palette;
+        buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public SegmentSink fork() {
+        return new BinarySegmentSink(this);
+    }
+
+    public void join(SegmentSink part) {
+        BinarySegmentSink other = (BinarySegmentSink) part;
+        ByteBuffer records = other.buffer;
+        records.flip();
+        while (records.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int n = Math.min(records.remaining(), buffer.remaining());
+            ByteBuffer slice = records.slice();
+            slice.limit(n);
+            buffer.put(slice);
+            records.position(records.position() + n);
+        }
+        records.clear();
+        segments += other.segments;
+        other.segments = 0;
+    }
+
+    public void accept(String color, double x1, double y1, double x2, double y2) {
+        if (buffer.remaining() < 36) {
+            drain();
+        }
+
+        if (color != lastColor) {
+            Integer index = palette.get(color);
+            if (index == null) {
+                throw new IllegalArgumentException("color " + color + " is not in the palette");
+            }
+            lastColor = color;
+            lastIndex = index;
+        }
+
+        buffer.putInt(lastIndex);
+        if (float32) {
+            buffer.putFloat((float) x1);
+            buffer.putFloat((float) y1);
+            buffer.putFloat((float) x2);
+            buffer.putFloat((float) y2);
+        } else {
+            buffer.putDouble(x1);
+            buffer.putDouble(y1);
+            buffer.putDouble(x2);
+            buffer.putDouble(y2);
+        }
+        segments++;
+    }
+
+    public void flush() {
+        drain();
+        if (seekable) {
+            ByteBuffer count = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            count.putLong(segments).flip();
+            try {
+                while (count.hasRemaining()) {
+                    ((FileChannel) channel).write(count, COUNT_OFFSET + count.position());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * A FileChannel on a pipe or terminal cannot seek; asking for its
+     * position is how we find out.
+     */
+    private static boolean seekable(WritableByteChannel channel) {
+        if (!(channel instanceof FileChannel)) {
+            return false;
+        }
+        try {
+            ((FileChannel) channel).position();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void drain() {
+        if (channel == null) {
+            buffer = TextSegmentSink.grow(buffer, buffer.capacity());
+            return;
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.clear();
+    }
+}
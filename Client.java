@@ -0,0 +1,85 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Thin client for Server. Sends one program, read from a file or from
+ * standard input, and writes the answer the way Main would: segments to
+ * standard output, and a syntax error message after them. A program that
+ * cannot be run is reported on standard error with exit status 1.
+ *
+ * Usage: java Client [--socket PATH | --port N] [program file]
+ */
+public class Client {
+    public static void main(String[] args) throws IOException {
+        String socket = null;
+        int port = Server.DEFAULT_PORT;
+        String input = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--socket")) {
+                socket = args[++i];
+            } else if (args[i].equals("--port")) {
+                port = Integer.parseInt(args[++i]);
+            } else {
+                input = args[i];
+            }
+        }
+
+        byte[] program = input != null ? Files.readAllBytes(Paths.get(input)) : System.in.readAllBytes();
+        SocketAddress address = Server.address(socket, port);
+
+        try (SocketChannel channel = address instanceof UnixDomainSocketAddress
+                ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open()) {
+            channel.connect(address);
+
+            ByteBuffer request = ByteBuffer.allocate(4 + program.length);
+            request.putInt(program.length).put(program).flip();
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+
+            FileChannel out = new FileOutputStream(FileDescriptor.out).getChannel();
+            ByteBuffer header = ByteBuffer.allocate(5);
+            ByteBuffer payload = ByteBuffer.allocate(1 << 16);
+            while (true) {
+                header.clear();
+                if (!Server.readFully(channel, header)) {
+                    throw new IOException("server closed the connection");
+                }
+                header.flip();
+                byte kind = header.get();
+                int length = header.getInt();
+                if (length > payload.capacity()) {
+                    payload = ByteBuffer.allocate(length);
+                }
+                payload.clear().limit(length);
+                Server.readFully(channel, payload);
+                payload.flip();
+
+                if (kind == Server.OUTPUT) {
+                    while (payload.hasRemaining()) {
+                        out.write(payload);
+                    }
+                } else if (kind == Server.ERROR) {
+                    System.out.println(StandardCharsets.UTF_8.decode(payload));
+                    return;
+                } else if (kind == Server.FAILURE) {
+                    System.err.println(StandardCharsets.UTF_8.decode(payload));
+                    System.exit(1);
+                } else {
+                    return;  // DONE
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shrinks the output by dropping segments that were already drawn and by
+ * merging runs of segments into one line, before passing them on to
+ * another sink. The drawing stays the same; only the number of segments
+ * it is made of changes.
+ *
+ * A segment is a duplicate if a segment of the same color with the same
+ * endpoints (in either direction) was seen before. Endpoints are compared
+ * after rounding them to a multiple of the quantum, so a line retraced
+ * along another path, with different rounding errors, still counts. The
+ * segments seen are remembered in an open-addressing table of their
+ * rounded endpoints. With a limit, the table forgets everything whenever
+ * it holds that many segments, so memory stays bounded at the cost of
+ * missing duplicates that are far apart.
+ *
+ * A segment that is kept is merged into the one before it if it has the
+ * same color, starts exactly where that one ends, and goes on in the same
+ * direction (within a relative tolerance of 1e-9, so the rounding of the
+ * positions does not stop a straight run from merging). The merged line is
+ * only passed on when the next segment does not continue it, or on flush,
+ * so flush should only be called once drawing is done.
+ *
+ * Forked sinks keep their segments in memory and are replayed through
+ * this sink on join (the default of SegmentSink), so running in parallel
+ * gives the same output as running sequentially.
+ */
+class CoalescingSegmentSink implements SegmentSink {
+    private static final double TOLERANCE = 1e-9;  // relative tolerance for "same direction"
+    private static final int STRIDE = 5;           // x1, y1, x2, y2 and color id + 1 per slot
+
+    private final SegmentSink target;
+    private final double quantum;  // endpoints are rounded to multiples of this
+    private final long limit;      // most segments remembered at once (Long.MAX_VALUE for all)
+
+    private final Map<String, Integer> colorIds = new HashMap<>();
+    private long[] seen = new long[STRIDE * 1024];  // rounded segments, 0 in the color slot if empty
+    private int size;
+
+    private String color;          // the pending (possibly merged) segment, if color != null
+    private double x1, y1, x2, y2;
+
+    public long received;    // segments accepted
+    public long duplicates;  // of those, dropped as already drawn
+    public long merged;      // of those, merged into the segment before
+    public long written;     // segments passed on
+    public long resets;      // times the table was full and forgot everything
+
+    public CoalescingSegmentSink(SegmentSink target) {
+        this(target, 1e-6, Long.MAX_VALUE);
+    }
+
+    public CoalescingSegmentSink(SegmentSink target, double quantum, long limit) {
+        this.target = target;
+        this.quantum = quantum;
+        this.limit = limit;
+    }
+
+    public void accept(String color, double x1, double y1, double x2, double y2) {
+        received++;
+        if (!remember(color, x1, y1, x2, y2)) {
+            duplicates++;
+            return;
+        }
+
+        if (this.color != null && continues(color, x1, y1, x2, y2)) {
+            merged++;
+            this.x2 = x2;  // it starts at the old end, so a point changes nothing
+            this.y2 = y2;
+            return;
+        }
+
+        pass();
+        this.color = color;
+        this.x1 = x1;
+        this.y1 = y1;
+        this.x2 = x2;
+        this.y2 = y2;
+    }
+
+    /**
+     * Whether the segment goes on from the end of the pending one in the
+     * same color and direction. A segment of length zero continues any
+     * segment it touches, and any segment continues one of length zero.
+     */
+    private boolean continues(String color, double x1, double y1, double x2, double y2) {
+        if (x1 != this.x2 || y1 != this.y2 || !color.equals(this.color)) {
+            return false;
+        }
+        double ax = this.x2 - this.x1;
+        double ay = this.y2 - this.y1;
+        double bx = x2 - x1;
+        double by = y2 - y1;
+        if ((ax == 0 && ay == 0) || (bx == 0 && by == 0)) {
+            return true;
+        }
+        double cross = ax * by - ay * bx;
+        double dot = ax * bx + ay * by;
+        return dot > 0 && Math.abs(cross) <= TOLERANCE * Math.hypot(ax, ay) * Math.hypot(bx, by);
+    }
+
+    /**
+     * Passes the pending segment on, if there is one.
+     */
+    private void pass() {
+        if (color != null) {
+            target.accept(color, x1, y1, x2, y2);
+            written++;
+            color = null;
+        }
+    }
+
+    /**
+     * Adds the segment to the table, and returns false if it was there
+     * already.
+     */
+    private boolean remember(String color, double x1, double y1, double x2, double y2) {
+        long a = round(x1), b = round(y1), c = round(x2), d = round(y2);
+        if (a > c || (a == c && b > d)) {  // the same key for both directions
+            long t = a; a = c; c = t;
+            t = b; b = d; d = t;
+        }
+        long id = colorIds.computeIfAbsent(color, k -> colorIds.size()) + 1;
+
+        int mask = seen.length / STRIDE - 1;
+        int slot = hash(a, b, c, d, id) & mask;
+        while (seen[slot * STRIDE + 4] != 0) {
+            int i = slot * STRIDE;
+            if (seen[i] == a && seen[i + 1] == b && seen[i + 2] == c && seen[i + 3] == d
+                    && seen[i + 4] == id) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size >= limit) {
+            Arrays.fill(seen, 0);
+            size = 0;
+            resets++;
+            return remember(color, x1, y1, x2, y2);
+        }
+        int i = slot * STRIDE;
+        seen[i] = a;
+        seen[i + 1] = b;
+        seen[i + 2] = c;
+        seen[i + 3] = d;
+        seen[i + 4] = id;
+        if (++size * 2 > mask + 1) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * The key for a coordinate: the bits of the nearest multiple of the
+     * quantum, counted in quanta. Rounding stays in doubles, so far out
+     * coordinates keep distinct keys instead of all saturating at the
+     * largest long; adding 0.0 makes -0.0 the same key as 0.0.
+     */
+    private long round(double value) {
+        return Double.doubleToLongBits(Math.rint(value / quantum) + 0.0);
+    }
+
+    private static int hash(long a, long b, long c, long d, long id) {
+        long h = id;
+        h = h * 0x9E3779B97F4A7C15L + a;
+        h = h * 0x9E3779B97F4A7C15L + b;
+        h = h * 0x9E3779B97F4A7C15L + c;
+        h = h * 0x9E3779B97F4A7C15L + d;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Doubles the table, moving every segment to its slot in the new one.
+     */
+    private void grow() {
+        long[] old = seen;
+        seen = new long[old.length * 2];
+        int mask = seen.length / STRIDE - 1;
+        for (int i = 0; i < old.length; i += STRIDE) {
+            if (old[i + 4] != 0) {
+                int slot = hash(old[i], old[i + 1], old[i + 2], old[i + 3], old[i + 4]) & mask;
+                while (seen[slot * STRIDE + 4] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                System.arraycopy(old, i, seen, slot * STRIDE, STRIDE);
+            }
+        }
+    }
+
+    public void flush() {
+        pass();
+        target.flush();
+    }
+
+    /**
+     * Returns how many segments came in, how many were removed and why.
+     */
+    public String toString() {
+        return "coalesce: " + received + " segments in, " + written + " out ("
+                + (duplicates + merged) + " removed: " + duplicates + " duplicates, " + merged + " merged"
+                + (resets > 0 ? "; duplicate table reset " + resets + " times" : "") + ")";
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * What running a part of the program once costs, worked out from the
+ * parse tree without running it: how many statements are executed (a REP
+ * counts once, plus everything its iterations execute) and how many
+ * segments are drawn. The number of segments depends on the pen state at
+ * the start, so it is recorded for both cases, along with the pen state
+ * left behind, as in Effect.
+ *
+ * REP counts multiply, so the numbers can get far too large for a long.
+ * All arithmetic saturates at Long.MAX_VALUE instead of overflowing; a
+ * count of Long.MAX_VALUE means "at least that many".
+ */
+public class Cost {
+    public static final Cost NONE = new Cost(0, 0, 0, Effect.KEEP);
+
+    public final long statements;      // statements executed
+    public final long segmentsIfUp;    // segments drawn when started with the pen up
+    public final long segmentsIfDown;  // segments drawn when started with the pen down
+    public final int pen;              // pen afterwards: Effect.KEEP, 1 (up) or 0 (down)
+
+    public Cost(long statements, long segmentsIfUp, long segmentsIfDown, int pen) {
+        this.statements = statements;
+        this.segmentsIfUp = segmentsIfUp;
+        this.segmentsIfDown = segmentsIfDown;
+        this.pen = pen;
+    }
+
+    /**
+     * Segments drawn when started with the given pen state.
+     */
+    public long segments(boolean up) {
+        return up ? segmentsIfUp : segmentsIfDown;
+    }
+
+    /**
+     * The pen state left behind, given the pen state before.
+     */
+    public boolean penAfter(boolean up) {
+        return pen == Effect.KEEP ? up : pen == 1;
+    }
+
+    /**
+     * The cost of doing this and then next.
+     */
+    public Cost then(Cost next) {
+        return new Cost(
+            add(statements, next.statements),
+            add(segmentsIfUp, next.segments(penAfter(true))),
+            add(segmentsIfDown, next.segments(penAfter(false))),
+            next.pen == Effect.KEEP ? pen : next.pen);
+    }
+
+    /**
+     * The cost of a REP statement running this count times. As with
+     * Effect.repeat, every iteration after the first starts with the same
+     * pen state as the second.
+     */
+    public Cost repeat(int count) {
+        if (count <= 0) {
+            return new Cost(1, 0, 0, Effect.KEEP);
+        }
+        return new Cost(
+            add(1, multiply(statements, count)),
+            add(segmentsIfUp, multiply(segments(penAfter(true)), count - 1)),
+            add(segmentsIfDown, multiply(segments(penAfter(false)), count - 1)),
+            pen);
+    }
+
+    static long add(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;  // both are non-negative
+    }
+
+    static long multiply(long a, long b) {
+        return a != 0 && b > Long.MAX_VALUE / a ? Long.MAX_VALUE : a * b;
+    }
+
+    /**
+     * Formats a count, which may have saturated.
+     */
+    public static String format(long count) {
+        return count == Long.MAX_VALUE ? "more than " + (Long.MAX_VALUE - 1) : Long.toString(count);
+    }
+}
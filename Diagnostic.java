@@ -0,0 +1,28 @@
+import java.util.Set;
+
+/**
+ * One syntax error found while parsing with error recovery: where it is,
+ * what was found there, and what would have been accepted instead.
+ */
+public class Diagnostic {
+    public final int row;                 // row the error is reported at
+    public final TokenType found;         // type of the offending token
+    public final Set<TokenType> expected; // token types that would have been accepted
+
+    public Diagnostic(int row, TokenType found, Set<TokenType> expected) {
+        this.row = row;
+        this.found = found;
+        this.expected = expected;
+    }
+
+    public Diagnostic(SyntaxError error) {
+        this(error.errorToken.getRow(), error.errorToken.getType(), error.expected);
+    }
+
+    /**
+     * Returns the error in the form Main prints, followed by the details.
+     */
+    public String toString() {
+        return "Syntaxfel på rad " + row + ": " + found + ", väntade " + expected;
+    }
+}
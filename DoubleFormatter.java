@@ -0,0 +1,434 @@
+/**
+ * Formats doubles as ASCII straight into a byte array, without creating
+ * strings, for the text output.
+ *
+ * By default a value is written exactly as Double.toString writes it. That
+ * is not always the shortest decimal that reads back as the same double
+ * (before JDK 19 it sometimes has a digit too many), so the digits are
+ * worked out with the same algorithm Double.toString uses in JDK 17
+ * (jdk.internal.math.FloatingDecimal), step for step. Only its cases that
+ * fit in a long are done here; values that need its big integers (very
+ * large or very small exponents and subnormals), infinities and NaN are
+ * handed to Double.toString itself, which allocates. For drawings of a
+ * sensible size those are rare.
+ *
+ * With a number of decimals, values are instead rounded to that many
+ * digits after the point, as Math.round(value * 10^decimals) rounds, and
+ * always written with exactly that many (no point for 0 decimals, and no
+ * minus sign if the result is zero). Values too large for that to be
+ * exact are written in full, as by default.
+ *
+ * A formatter keeps its digits in a field, so it must only be used from
+ * one thread at a time.
+ */
+public class DoubleFormatter {
+    public static final int SHORTEST = -1;  // decimals for the Double.toString format
+    public static final int MAX_DECIMALS = 15;
+    public static final int MAX_LENGTH = 26;  // most bytes format writes
+
+    private static final long SIGNIFICAND = (1L << 52) - 1;
+    private static final long ONE_BITS = 1023L << 52;  // exponent bits of 1.0
+
+    private static final long[] LONG_5_POW = new long[28];  // 5^i
+    private static final int[] SMALL_5_POW = new int[14];
+    private static final long[] POW_10 = new long[MAX_DECIMALS + 1];
+
+    static {
+        LONG_5_POW[0] = 1;
+        for (int i = 1; i < LONG_5_POW.length; i++) {
+            LONG_5_POW[i] = LONG_5_POW[i - 1] * 5;
+        }
+        for (int i = 0; i < SMALL_5_POW.length; i++) {
+            SMALL_5_POW[i] = (int) LONG_5_POW[i];
+        }
+        POW_10[0] = 1;
+        for (int i = 1; i < POW_10.length; i++) {
+            POW_10[i] = POW_10[i - 1] * 10;
+        }
+    }
+
+    // Bits needed for 5^i (0 for i = 0), as in FloatingDecimal
+    private static final int[] N_5_BITS = {
+        0, 3, 5, 7, 10, 12, 14, 17, 19, 21, 24, 26, 28, 31, 33, 35, 38, 40, 42, 45, 47, 49, 52, 54,
+        56, 59, 61,
+    };
+
+    // Number of decimal digits of 2^i minus one, as in FloatingDecimal
+    private static final int[] INSIGNIFICANT_DIGITS = {
+        0, 0, 0, 0, 1, 1, 1, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 5, 5, 5, 6, 6, 6, 6, 7, 7, 7, 8, 8, 8,
+        9, 9, 9, 9, 10, 10, 10, 11, 11, 11, 12, 12, 12, 12, 13, 13, 13, 14, 14, 14, 15, 15, 15, 15,
+        16, 16, 16, 17, 17, 17, 18, 18, 18, 19,
+    };
+
+    public final int decimals;  // digits after the point, or SHORTEST
+
+    // The decimal digits of the value being formatted are
+    // digits[first .. first + count), and it is 0.d1d2d3... * 10^exponent.
+    private final byte[] digits = new byte[20];
+    private int first, count, exponent;
+
+    public DoubleFormatter() {
+        this(SHORTEST);
+    }
+
+    public DoubleFormatter(int decimals) {
+        if (decimals != SHORTEST && (decimals < 0 || decimals > MAX_DECIMALS)) {
+            throw new IllegalArgumentException("decimals must be from 0 to " + MAX_DECIMALS + ": " + decimals);
+        }
+        this.decimals = decimals;
+    }
+
+    /**
+     * Writes the value into out starting at pos, and returns the position
+     * after it. There must be room for MAX_LENGTH bytes.
+     */
+    public int format(double value, byte[] out, int pos) {
+        if (decimals != SHORTEST) {
+            double scaled = value * POW_10[decimals];
+            if (Math.abs(scaled) < 1e15) {
+                return fixed(Math.round(scaled), out, pos);
+            }
+        }
+
+        long bits = Double.doubleToRawLongBits(value);
+        int binExp = (int) (bits >>> 52) & 0x7FF;
+        long fractBits = bits & SIGNIFICAND;
+        if (binExp == 0 && fractBits == 0) {
+            if (bits < 0) {
+                out[pos++] = '-';
+            }
+            out[pos++] = '0';
+            out[pos++] = '.';
+            out[pos++] = '0';
+            return pos;
+        }
+        if (binExp == 0x7FF || binExp == 0 || !digits(binExp - 1023, fractBits | (1L << 52))) {
+            String text = Double.toString(value);
+            for (int i = 0; i < text.length(); i++) {
+                out[pos++] = (byte) text.charAt(i);
+            }
+            return pos;
+        }
+        if (bits < 0) {
+            out[pos++] = '-';
+        }
+        return chars(out, pos);
+    }
+
+    /**
+     * Writes the number of units of 10^-decimals.
+     */
+    private int fixed(long units, byte[] out, int pos) {
+        if (units < 0) {
+            out[pos++] = '-';
+            units = -units;
+        }
+        long whole = units / POW_10[decimals];
+        long fraction = units % POW_10[decimals];
+        pos = digits(whole, 1, out, pos);
+        if (decimals > 0) {
+            out[pos++] = '.';
+            pos = digits(fraction, decimals, out, pos);
+        }
+        return pos;
+    }
+
+    /**
+     * Writes a non-negative number with at least the given number of
+     * digits, padded with zeros in front.
+     */
+    private static int digits(long number, int width, byte[] out, int pos) {
+        int length = 1;
+        for (long n = number / 10; n != 0; n /= 10) {
+            length++;
+        }
+        length = Math.max(length, width);
+        for (int i = pos + length - 1; i >= pos; i--) {
+            out[i] = (byte) ('0' + number % 10);
+            number /= 10;
+        }
+        return pos + length;
+    }
+
+    /**
+     * Works out the digits of the normal double fractBits * 2^(binExp - 52),
+     * where fractBits has its bit 52 set, the way FloatingDecimal.dtoa does.
+     * Returns false for the cases that need big integers, leaving the
+     * digits undefined.
+     */
+    private boolean digits(int binExp, long fractBits) {
+        final int nSignificantBits = 53;
+        int tailZeros = Long.numberOfTrailingZeros(fractBits);
+        int nFractBits = 53 - tailZeros;  // significant bits
+        int nTinyBits = Math.max(0, nFractBits - binExp - 1);  // bits right of the point
+
+        // An integer of at most 63 bits: its digits are those of the long
+        if (binExp <= 62 && binExp >= -21 && nTinyBits == 0) {
+            int insignificant = binExp > nSignificantBits
+                    ? insignificantDigitsForPow2(binExp - nSignificantBits - 1) : 0;
+            if (binExp >= 52) {
+                fractBits <<= binExp - 52;
+            } else {
+                fractBits >>>= 52 - binExp;
+            }
+            longDigits(fractBits, insignificant);
+            return true;
+        }
+
+        // The value is B / S * 10^decExp with 1 <= B / S < 10, and M is
+        // half its ulp, scaled like B; digits are taken off B / S one by
+        // one until the remainder is within M
+        int decExp = (int) Math.floor(estimateLog10(fractBits, binExp));
+        int b5 = Math.max(0, -decExp);
+        int b2 = b5 + nTinyBits + binExp;
+        int s5 = Math.max(0, decExp);
+        int s2 = s5 + nTinyBits;
+        int m5 = b5;
+        int m2 = b2 - nSignificantBits;
+
+        fractBits >>>= tailZeros;
+        b2 -= nFractBits - 1;
+        int common2 = Math.min(b2, s2);
+        b2 -= common2;
+        s2 -= common2;
+        m2 -= common2;
+        if (nFractBits == 1) {
+            m2 -= 1;
+        }
+        if (m2 < 0) {
+            b2 -= m2;
+            s2 -= m2;
+            m2 = 0;
+        }
+
+        int bBits = nFractBits + b2 + (b5 < N_5_BITS.length ? N_5_BITS[b5] : b5 * 3);
+        int tenSBits = s2 + 1 + (s5 + 1 < N_5_BITS.length ? N_5_BITS[s5 + 1] : (s5 + 1) * 3);
+        if (bBits >= 64 || tenSBits >= 64) {
+            return false;
+        }
+
+        int n = 0;
+        boolean low, high;
+        long lowDigitDifference;
+        int q;
+        if (bBits < 32 && tenSBits < 32) {
+            int b = ((int) fractBits * SMALL_5_POW[b5]) << b2;
+            int s = SMALL_5_POW[s5] << s2;
+            int m = SMALL_5_POW[m5] << m2;
+            int tens = s * 10;
+            q = b / s;
+            b = 10 * (b - q * s);
+            m *= 10;
+            low = b < m;
+            high = b + m > tens;
+            if (q == 0 && !high) {
+                decExp--;
+            } else {
+                digits[n++] = (byte) ('0' + q);
+            }
+            if (decExp < -3 || decExp >= 8) {
+                high = low = false;
+            }
+            while (!low && !high) {
+                q = b / s;
+                b = 10 * (b - q * s);
+                m *= 10;
+                if (m > 0L) {
+                    low = b < m;
+                    high = b + m > tens;
+                } else {
+                    low = true;
+                    high = true;
+                }
+                digits[n++] = (byte) ('0' + q);
+            }
+            lowDigitDifference = (b << 1) - tens;
+        } else {
+            long b = (fractBits * LONG_5_POW[b5]) << b2;
+            long s = LONG_5_POW[s5] << s2;
+            long m = LONG_5_POW[m5] << m2;
+            long tens = s * 10L;
+            q = (int) (b / s);
+            b = 10L * (b - q * s);
+            m *= 10L;
+            low = b < m;
+            high = b + m > tens;
+            if (q == 0 && !high) {
+                decExp--;
+            } else {
+                digits[n++] = (byte) ('0' + q);
+            }
+            if (decExp < -3 || decExp >= 8) {
+                high = low = false;
+            }
+            while (!low && !high) {
+                q = (int) (b / s);
+                b = 10 * (b - q * s);
+                m *= 10;
+                if (m > 0L) {
+                    low = b < m;
+                    high = b + m > tens;
+                } else {
+                    low = true;
+                    high = true;
+                }
+                digits[n++] = (byte) ('0' + q);
+            }
+            lowDigitDifference = (b << 1) - tens;
+        }
+
+        exponent = decExp + 1;
+        first = 0;
+        count = n;
+        if (high) {
+            if (low) {
+                if (lowDigitDifference == 0L) {
+                    if ((digits[first + count - 1] & 1) != 0) {
+                        roundUp();
+                    }
+                } else if (lowDigitDifference > 0) {
+                    roundUp();
+                }
+            } else {
+                roundUp();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The digits of a positive long, dropping the given number of digits
+     * at the end (rounding half up) and any zeros left at the end.
+     */
+    private void longDigits(long value, int insignificant) {
+        int decExponent = 0;
+        if (insignificant != 0) {
+            long pow10 = LONG_5_POW[insignificant] << insignificant;
+            long residue = value % pow10;
+            value /= pow10;
+            decExponent += insignificant;
+            if (residue >= (pow10 >> 1)) {
+                value++;
+            }
+        }
+        int i = digits.length - 1;
+        int c = (int) (value % 10L);
+        value /= 10L;
+        while (c == 0) {
+            decExponent++;
+            c = (int) (value % 10L);
+            value /= 10L;
+        }
+        while (value != 0L) {
+            digits[i--] = (byte) (c + '0');
+            decExponent++;
+            c = (int) (value % 10L);
+            value /= 10L;
+        }
+        digits[i] = (byte) (c + '0');
+        exponent = decExponent + 1;
+        first = i;
+        count = digits.length - i;
+    }
+
+    /**
+     * Adds one to the last digit. As in FloatingDecimal, a carry out of
+     * the first digit leaves the number of digits unchanged.
+     */
+    private void roundUp() {
+        int i = first + count - 1;
+        int q = digits[i];
+        if (q == '9') {
+            while (q == '9' && i > first) {
+                digits[i] = '0';
+                q = digits[--i];
+            }
+            if (q == '9') {
+                exponent += 1;
+                digits[first] = '1';
+                return;
+            }
+        }
+        digits[i] = (byte) (q + 1);
+    }
+
+    /**
+     * Estimates log10 of fractBits * 2^(binExp - 52), exactly as
+     * FloatingDecimal.estimateDecExp does before taking the floor.
+     */
+    private static double estimateLog10(long fractBits, int binExp) {
+        double d2 = Double.longBitsToDouble(ONE_BITS | (fractBits & SIGNIFICAND));
+        return (d2 - 1.5D) * 0.289529654D + 0.176091259 + (double) binExp * 0.301029995663981;
+    }
+
+    private static int insignificantDigitsForPow2(int p2) {
+        if (p2 > 1 && p2 < INSIGNIFICANT_DIGITS.length) {
+            return INSIGNIFICANT_DIGITS[p2];
+        }
+        return 0;
+    }
+
+    /**
+     * Writes the digits the way Double.toString lays them out: plainly
+     * from 10^-3 up to 10^7, and as d.dddEn otherwise.
+     */
+    private int chars(byte[] out, int pos) {
+        if (exponent > 0 && exponent < 8) {
+            int length = Math.min(count, exponent);
+            System.arraycopy(digits, first, out, pos, length);
+            pos += length;
+            if (length < exponent) {
+                for (int i = length; i < exponent; i++) {
+                    out[pos++] = '0';
+                }
+                out[pos++] = '.';
+                out[pos++] = '0';
+            } else {
+                out[pos++] = '.';
+                if (length < count) {
+                    System.arraycopy(digits, first + length, out, pos, count - length);
+                    pos += count - length;
+                } else {
+                    out[pos++] = '0';
+                }
+            }
+        } else if (exponent <= 0 && exponent > -3) {
+            out[pos++] = '0';
+            out[pos++] = '.';
+            for (int i = exponent; i < 0; i++) {
+                out[pos++] = '0';
+            }
+            System.arraycopy(digits, first, out, pos, count);
+            pos += count;
+        } else {
+            out[pos++] = digits[first];
+            out[pos++] = '.';
+            if (count > 1) {
+                System.arraycopy(digits, first + 1, out, pos, count - 1);
+                pos += count - 1;
+            } else {
+                out[pos++] = '0';
+            }
+            out[pos++] = 'E';
+            int e;
+            if (exponent <= 0) {
+                out[pos++] = '-';
+                e = -exponent + 1;
+            } else {
+                e = exponent - 1;
+            }
+            if (e <= 9) {
+                out[pos++] = (byte) (e + '0');
+            } else if (e <= 99) {
+                out[pos++] = (byte) (e / 10 + '0');
+                out[pos++] = (byte) (e % 10 + '0');
+            } else {
+                out[pos++] = (byte) (e / 100 + '0');
+                e %= 100;
+                out[pos++] = (byte) (e / 10 + '0');
+                out[pos++] = (byte) (e % 10 + '0');
+            }
+        }
+        return pos;
+    }
+}
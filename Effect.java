@@ -0,0 +1,64 @@
+/**
+ * The net effect of evaluating a part of the program once: how much it
+ * turns Leona, what it leaves the pen as, and whether it draws anything.
+ * Whether something draws depends on the pen state it starts with, so
+ * that is recorded for both cases.
+ */
+public class Effect {
+    public static final int KEEP = -1;  // pen value for "leaves the pen as it was"
+
+    public static final Effect NONE = new Effect(0, KEEP, false, false);
+
+    public final int rotation;          // net heading change in degrees, 0 to 359
+    public final int pen;               // pen afterwards: KEEP, 1 (up) or 0 (down)
+    public final boolean drawsIfUp;     // draws when started with the pen up
+    public final boolean drawsIfDown;   // draws when started with the pen down
+
+    public Effect(int rotation, int pen, boolean drawsIfUp, boolean drawsIfDown) {
+        this.rotation = Math.floorMod(rotation, 360);
+        this.pen = pen;
+        this.drawsIfUp = drawsIfUp;
+        this.drawsIfDown = drawsIfDown;
+    }
+
+    /**
+     * Whether this draws anything when started with the given pen state.
+     */
+    public boolean draws(boolean up) {
+        return up ? drawsIfUp : drawsIfDown;
+    }
+
+    /**
+     * The pen state left behind, given the pen state before.
+     */
+    public boolean penAfter(boolean up) {
+        return pen == KEEP ? up : pen == 1;
+    }
+
+    /**
+     * The effect of doing this and then next.
+     */
+    public Effect then(Effect next) {
+        return new Effect(
+            rotation + next.rotation,
+            next.pen == KEEP ? pen : next.pen,
+            drawsIfUp || next.draws(penAfter(true)),
+            drawsIfDown || next.draws(penAfter(false)));
+    }
+
+    /**
+     * The effect of doing this count times in a row. Pen changes only ever
+     * set the pen to a fixed state, so every iteration after the first
+     * starts with the same pen state as the second.
+     */
+    public Effect repeat(int count) {
+        if (count <= 0) {
+            return NONE;
+        }
+        return new Effect(
+            (int) ((long) rotation * (count % 360) % 360),
+            pen,
+            drawsIfUp || count > 1 && draws(penAfter(true)),
+            drawsIfDown || count > 1 && draws(penAfter(false)));
+    }
+}
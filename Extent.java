@@ -0,0 +1,123 @@
+/**
+ * Where running a part of the program once takes Leona, worked out from
+ * the parse tree without running it: the net turn, the net move, and a box
+ * holding every point the path passes through (pen up or down). All of it
+ * is relative to where the part starts, as if Leona started at the origin
+ * facing along the x axis; see box for placing it at an actual start.
+ *
+ * The box of a sequence is the union of the boxes of its parts, each
+ * turned to the heading the part starts with, so it can be larger than the
+ * path needs, but never smaller. The numbers are computed in another
+ * order than Leona sums her moves, so they can differ from running the
+ * program in the last bits of the doubles.
+ */
+public class Extent {
+    public static final Extent NONE = new Extent(0, 0, 0, 0, 0, 0, 0);
+
+    public final int rotation;                 // net heading change in degrees, 0 to 359
+    public final double dx, dy;                // net move
+    public final double minX, minY, maxX, maxY;  // box around the path, including both ends
+
+    public Extent(int rotation, double dx, double dy, double minX, double minY, double maxX, double maxY) {
+        this.rotation = Math.floorMod(rotation, 360);
+        this.dx = dx;
+        this.dy = dy;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    /**
+     * A straight move of the given number of steps (negative for BACK).
+     */
+    public static Extent move(int steps) {
+        return new Extent(0, steps, 0, Math.min(steps, 0), 0, Math.max(steps, 0), 0);
+    }
+
+    /**
+     * A turn on the spot by the given number of degrees (negative for RIGHT).
+     */
+    public static Extent turn(int degrees) {
+        return new Extent(degrees % 360, 0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Doing this and then next.
+     */
+    public Extent then(Extent next) {
+        double c = Leona.COS[rotation];
+        double s = Leona.SIN[rotation];
+        double[] box = next.box(rotation);
+        return new Extent(
+            rotation + next.rotation,
+            dx + c * next.dx - s * next.dy,
+            dy + s * next.dx + c * next.dy,
+            Math.min(minX, dx + box[0]),
+            Math.min(minY, dy + box[1]),
+            Math.max(maxX, dx + box[2]),
+            Math.max(maxY, dy + box[3]));
+    }
+
+    /**
+     * Doing this count times in a row. If one pass does not turn, the
+     * passes follow each other along a line, and the box stretches from
+     * the first pass to the last. Otherwise the heading and the position
+     * come back to where they started after a full cycle of headings (at
+     * most 360 passes), so only the passes of one cycle are looked at.
+     */
+    public Extent repeat(int count) {
+        if (count <= 0) {
+            return NONE;
+        }
+        if (rotation == 0) {
+            double lastX = dx * (count - 1);
+            double lastY = dy * (count - 1);
+            return new Extent(0, dx * count, dy * count,
+                Math.min(minX, minX + lastX), Math.min(minY, minY + lastY),
+                Math.max(maxX, maxX + lastX), Math.max(maxY, maxY + lastY));
+        }
+
+        int cycle = 360 / gcd(rotation, 360);
+        Extent path = this;
+        for (int i = 1; i < Math.min(count, cycle); i++) {
+            path = path.then(this);
+        }
+        Extent end = NONE;  // the passes after the last full cycle
+        for (int i = 0; i < count % cycle; i++) {
+            end = end.then(this);
+        }
+        return new Extent(end.rotation, end.dx, end.dy, path.minX, path.minY, path.maxX, path.maxY);
+    }
+
+    /**
+     * Returns the box when started with the given heading, as offsets
+     * from the start: { minX, minY, maxX, maxY }. Unless the heading is a
+     * multiple of 90 degrees, this is the box around the turned box.
+     */
+    public double[] box(int angle) {
+        if (angle == 0) {
+            return new double[] { minX, minY, maxX, maxY };
+        }
+        double c = Leona.COS[angle];
+        double s = Leona.SIN[angle];
+        double centerX = (minX + maxX) / 2;
+        double centerY = (minY + maxY) / 2;
+        double halfX = (maxX - minX) / 2;
+        double halfY = (maxY - minY) / 2;
+        double x = c * centerX - s * centerY;
+        double y = s * centerX + c * centerY;
+        double width = Math.abs(c) * halfX + Math.abs(s) * halfY;
+        double height = Math.abs(s) * halfX + Math.abs(c) * halfY;
+        return new double[] { x - width, y - height, x + width, y + height };
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,148 @@
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Expands output written by InstanceWriter back into segments. Run on its
+ * own, it prints the file named on the command line (or standard input)
+ * in the text output format, which is byte for byte the text the program
+ * prints without --instanced.
+ *
+ * Every top-level USE is replayed on a Leona placed at its start: the
+ * moves of the instance are made one by one, each in its heading relative
+ * to the start, and nested USEs replay their instance from wherever the
+ * replay has got to. So the positions are summed in the same order and
+ * with the same table lookups as when the program ran.
+ */
+public class InstanceReader {
+    private final BufferedReader in;
+    private final Map<Integer, List<Move>> instances = new HashMap<>();
+    private int number;  // of the line being read, for error messages
+
+    public InstanceReader(BufferedReader in) {
+        this.in = in;
+    }
+
+    public static void main(String[] args) throws IOException {
+        SegmentSink sink = new TextSegmentSink(new FileOutputStream(FileDescriptor.out).getChannel());
+        try (BufferedReader in = args.length > 0
+                ? Files.newBufferedReader(Paths.get(args[0]))
+                : new BufferedReader(new InputStreamReader(System.in))) {
+            new InstanceReader(in).read(sink);
+        }
+        sink.flush();
+    }
+
+    /**
+     * Reads the whole input and passes every segment to the sink.
+     */
+    public void read(SegmentSink sink) throws IOException {
+        if (!InstanceWriter.HEADER.equals(next())) {
+            throw new IOException("not an instanced segment file");
+        }
+        Leona leona = new Leona(0, 0, 0, true, "#0000FF", sink);
+        String line;
+        while ((line = next()) != null) {
+            String[] words = line.split(" ");
+            if (words[0].equals("DEF") && words.length == 2) {
+                instances.put(Integer.parseInt(words[1]), definition());
+            } else if (words[0].equals("USE") && words.length == 5) {
+                leona.x = Double.parseDouble(words[2]);
+                leona.y = Double.parseDouble(words[3]);
+                replay(instance(words[1]), leona, Integer.parseInt(words[4]));
+            } else if (words[0].startsWith("#") && words.length == 5) {
+                sink.accept(words[0], Double.parseDouble(words[1]), Double.parseDouble(words[2]),
+                        Double.parseDouble(words[3]), Double.parseDouble(words[4]));
+            } else {
+                throw error("unexpected line");
+            }
+        }
+    }
+
+    /**
+     * Reads the lines of a DEF, up to its END.
+     */
+    private List<Move> definition() throws IOException {
+        List<Move> moves = new ArrayList<>();
+        String line;
+        while (!"END".equals(line = next())) {
+            if (line == null) {
+                throw error("DEF without END");
+            }
+            String[] words = line.split(" ");
+            if (words[0].equals("SEG") && words.length == 8) {
+                moves.add(new Move(words[1], Integer.parseInt(words[2]), Integer.parseInt(words[3]), null));
+            } else if (words[0].equals("MOVE") && words.length == 3) {
+                moves.add(new Move(null, Integer.parseInt(words[1]), Integer.parseInt(words[2]), null));
+            } else if (words[0].equals("USE") && words.length == 5) {
+                moves.add(new Move(null, 0, Integer.parseInt(words[4]), instance(words[1])));
+            } else {
+                throw error("unexpected line in DEF");
+            }
+        }
+        return moves;
+    }
+
+    /**
+     * Makes the moves of an instance, starting from Leona's position with
+     * the given heading.
+     */
+    private static void replay(List<Move> moves, Leona leona, int start) {
+        for (Move move : moves) {
+            leona.angle = (start + move.heading) % 360;
+            if (move.instance != null) {
+                replay(move.instance, leona, leona.angle);
+            } else {
+                leona.up = move.color == null;
+                if (move.color != null) {
+                    leona.color = move.color;
+                }
+                leona.move(move.steps);
+            }
+        }
+    }
+
+    private List<Move> instance(String id) throws IOException {
+        List<Move> moves = instances.get(Integer.parseInt(id));
+        if (moves == null) {
+            throw error("USE of undefined instance " + id);
+        }
+        return moves;
+    }
+
+    private String next() throws IOException {
+        number++;
+        return in.readLine();
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " on line " + number);
+    }
+
+    /**
+     * One line of a DEF: a move with the pen down (with a color) or up, or
+     * a pass of a nested instance. The heading is relative to the start of
+     * the pass the DEF describes.
+     */
+    private static class Move {
+        final String color;
+        final int steps;
+        final int heading;
+        final List<Move> instance;
+
+        Move(String color, int steps, int heading, List<Move> instance) {
+            this.color = color;
+            this.steps = steps;
+            this.heading = heading;
+            this.instance = instance;
+        }
+    }
+}
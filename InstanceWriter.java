@@ -0,0 +1,214 @@
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the instanced output format, in which a drawing loop is written
+ * as one pass through its body plus where each pass starts, instead of as
+ * all the segments of all its passes. The lines are:
+ *
+ *   INSTANCED 1                  first line, the format and its version
+ *   #RRGGBB x1 y1 x2 y2          a segment drawn outside any loop written
+ *                                as instances, as in the text format
+ *   DEF id                       begins instance id: one pass through a
+ *                                loop body, as if started at the origin
+ *                                facing along the x axis
+ *   SEG color steps heading x1 y1 x2 y2
+ *                                in a DEF: a move with the pen down, the
+ *                                heading taken relative to the start of the
+ *                                pass, and the segment it draws there
+ *   MOVE steps heading           in a DEF: a move with the pen up
+ *   USE id x y heading           a pass drawn by instance id, starting at
+ *                                (x, y) with the given heading; in a DEF,
+ *                                that is a pass of a nested loop, relative
+ *                                to the start of the outer pass
+ *   END                          ends the DEF
+ *
+ * An instance is always defined before it is used, and before the DEF of
+ * any instance using it. The first pass of a loop can start with another
+ * pen or color than the rest, so a loop can have more than one instance.
+ *
+ * The segment coordinates in a DEF are for viewers. To get exactly the
+ * segments the text output would have, InstanceReader replays the moves
+ * from the start of every top-level USE, summing them as Leona does; that
+ * is why the moves keep their steps and headings, and why the starts are
+ * written in full. Applying the USE transforms to the segments of a DEF
+ * would give the same drawing, but not the same last bits.
+ *
+ * Program writes a drawing loop this way when Leona has an InstanceWriter
+ * and a pass through the body can be replayed from its moves (see
+ * Program.replayable); other loops are written as plain segments.
+ */
+public class InstanceWriter {
+    public static final String HEADER = "INSTANCED 1";
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+
+    private final TextSegmentSink out;
+    private final DoubleFormatter format = new DoubleFormatter();
+    private final Map<String, Integer> ids = new HashMap<>();     // by loop pc, pen and color
+    private final List<ByteArrayOutputStream> open = new ArrayList<>();  // DEFs being recorded, innermost last
+    private byte[] line = new byte[256];
+    private int length;
+    private int defined;  // instances defined so far
+
+    /**
+     * A writer for the loops of one program, writing to out, which also
+     * gets the segments Leona draws outside those loops.
+     */
+    public InstanceWriter(TextSegmentSink out) {
+        this.out = out;
+        text(HEADER);
+        endLine();
+    }
+
+    /**
+     * Returns the instance for a pass through the loop at pc starting with
+     * the given pen and color, or -1 if there is none yet.
+     */
+    public int find(int pc, boolean up, String color) {
+        Integer id = ids.get(key(pc, up, color));
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Begins the instance for a pass through the loop at pc starting with
+     * the given pen and color, and returns its id. The moves of the pass
+     * are then reported by a RecordingLeona, until end.
+     */
+    public int begin(int pc, boolean up, String color) {
+        int id = defined++;
+        ids.put(key(pc, up, color), id);
+        open.add(new ByteArrayOutputStream());
+        text("DEF ");
+        number(id);
+        endLine();
+        return id;
+    }
+
+    /**
+     * Ends the innermost instance being recorded and writes it out.
+     */
+    public void end() {
+        text("END");
+        endLine();
+        ByteArrayOutputStream definition = open.remove(open.size() - 1);
+        out.putLines(definition.toByteArray(), definition.size());
+    }
+
+    /**
+     * Writes a move made while recording an instance: steps in the given
+     * heading from (x1, y1) to (x2, y2), drawn in color unless up.
+     */
+    public void move(double steps, int heading, boolean up, String color,
+            double x1, double y1, double x2, double y2) {
+        if (up) {
+            text("MOVE ");
+            number((long) steps);
+            text(" ");
+            number(heading);
+        } else {
+            text("SEG ");
+            text(color);
+            text(" ");
+            number((long) steps);
+            text(" ");
+            number(heading);
+            text(" ");
+            number(x1);
+            text(" ");
+            number(y1);
+            text(" ");
+            number(x2);
+            text(" ");
+            number(y2);
+        }
+        endLine();
+    }
+
+    /**
+     * Writes a pass drawn by instance id, starting at (x, y) with the given
+     * heading.
+     */
+    public void place(int id, double x, double y, int heading) {
+        text("USE ");
+        number(id);
+        text(" ");
+        number(x);
+        text(" ");
+        number(y);
+        text(" ");
+        number(heading);
+        endLine();
+    }
+
+    private String key(int pc, boolean up, String color) {
+        return pc + (up ? " up " : " down ") + color;
+    }
+
+    private void text(String text) {
+        room(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            line[length++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void number(long value) {
+        text(Long.toString(value));
+    }
+
+    private void number(double value) {
+        room(DoubleFormatter.MAX_LENGTH);
+        length = format.format(value, line, length);
+    }
+
+    /**
+     * Ends the line and writes it to the innermost instance being
+     * recorded, or straight to the output if there is none.
+     */
+    private void endLine() {
+        room(NEWLINE.length);
+        System.arraycopy(NEWLINE, 0, line, length, NEWLINE.length);
+        length += NEWLINE.length;
+        if (open.isEmpty()) {
+            out.putLines(line, length);
+        } else {
+            open.get(open.size() - 1).write(line, 0, length);
+        }
+        length = 0;
+    }
+
+    private void room(int bytes) {
+        if (length + bytes > line.length) {
+            byte[] bigger = new byte[Math.max(line.length * 2, length + bytes)];
+            System.arraycopy(line, 0, bigger, 0, length);
+            line = bigger;
+        }
+    }
+}
+
+/**
+ * A Leona that reports every move she makes to an InstanceWriter, for
+ * recording one pass through a loop body as an instance. She starts at
+ * the origin facing along the x axis, so the moves come out relative to
+ * the start of the pass, and draws nothing herself. Loops nested in the
+ * body are written as instances of their own.
+ */
+class RecordingLeona extends Leona {
+    private final InstanceWriter writer;
+
+    public RecordingLeona(boolean up, String color, InstanceWriter writer) {
+        super(0, 0, 0, up, color, (c, x1, y1, x2, y2) -> { });
+        this.writer = writer;
+        instances = writer;
+    }
+
+    public void move(double steps) {
+        double x1 = x;
+        double y1 = y;
+        super.move(steps);
+        writer.move(steps, angle, up, color, x1, y1, x, y);
+    }
+}
@@ -1,46 +1,146 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+
 /**
  * The Leona class simulates a simple drawing agent (similar to turtle graphics).
  * It tracks position, direction, drawing state (pen up/down), and color.
- * When the pen is down, it "draws" lines by printing coordinate output.
+ * When the pen is down, it "draws" lines by passing each segment to its sink.
+ *
+ * The heading is always an integer number of degrees in [0, 360), so the
+ * direction of a move is looked up in a precomputed table instead of
+ * calling Math.cos and Math.sin. The four cardinal directions are exact.
  */
 public class Leona {
+    static final double[] COS = new double[360];  // unit direction vector
+    static final double[] SIN = new double[360];  // for each heading (also used by Extent)
+
+    static {
+        for (int a = 0; a < 360; a++) {
+            double turn = (Math.PI * a) / 180;
+            COS[a] = Math.cos(turn);
+            SIN[a] = Math.sin(turn);
+        }
+        COS[90] = COS[270] = SIN[0] = SIN[180] = 0;
+        COS[0] = SIN[90] = 1;
+        COS[180] = SIN[270] = -1;
+    }
+
     public String color;        // current drawing color
     public double x, y;         // current position
     public boolean up;          // whether the pen is up (not drawing)
-    public int angle;           // current direction in degrees (0 = east)
+    public int angle;           // current direction in degrees (0 = east), in [0, 360)
+    public SegmentSink sink;    // where drawn segments go
+    public Metrics metrics;     // where to count statements and moves, if anywhere (not copied)
+    public Viewport viewport;   // if set, loops may skip what cannot be drawn inside it (not copied)
+    public InstanceWriter instances;  // if set, drawing loops are written as instances (not copied)
+
+    // With compensated set, positions are accumulated with Neumaier's
+    // compensated summation, so long runs of moves do not drift from
+    // rounding. sumX/sumY hold the running sums and errX/errY the rounding
+    // error lost from them; x and y are their corrected totals.
+    public boolean compensated;
+    private double sumX, sumY, errX, errY;
 
     /**
      * Constructor to initialize position, angle, pen state, and color.
+     * Segments are printed to standard output; the output is buffered,
+     * so call sink.flush() when done drawing.
      */
     public Leona(double x, double y, int angle, boolean up, String color) {
-        this.color = "#0000FF"; // default color (this is overwritten below)
+        this(x, y, angle, up, color,
+             new TextSegmentSink(new FileOutputStream(FileDescriptor.out).getChannel()));
+    }
+
+    /**
+     * Constructor that also chooses where drawn segments go.
+     */
+    public Leona(double x, double y, int angle, boolean up, String color, SegmentSink sink) {
         this.x = x;
         this.y = y;
-        this.angle = angle;
+        this.angle = Math.floorMod(angle, 360);
         this.up = up;
         this.color = color;
+        this.sink = sink;
+    }
+
+    /**
+     * Returns a new Leona in the same state as this one, drawing to another sink.
+     */
+    public Leona copy(SegmentSink sink) {
+        Leona copy = new Leona(x, y, angle, up, color, sink);
+        copy.assign(this);
+        return copy;
+    }
+
+    /**
+     * Takes over the state (but not the sink) of another Leona.
+     */
+    public void assign(Leona other) {
+        x = other.x;
+        y = other.y;
+        angle = other.angle;
+        up = other.up;
+        color = other.color;
+        compensated = other.compensated;
+        sumX = other.sumX;
+        sumY = other.sumY;
+        errX = other.errX;
+        errY = other.errY;
     }
 
     /**
      * Moves Leona (turle) forward in the current direction.
-     * If the pen is down, prints out the line segment as a string of coordinates.
+     * If the pen is down, passes the line segment to the sink.
      *
      * @param steps number of steps to move forward
      */
     public void move(double steps) {
-        double turn = (Math.PI * angle) / 180; // convert angle to radians
+        double oldX = x;
+        double oldY = y;
 
-        double newX = x + (steps * Math.cos(turn)); // compute new x
-        double newY = y + (steps * Math.sin(turn)); // compute new y
+        translate(steps * COS[angle], steps * SIN[angle]);
 
+        if (metrics != null) {
+            metrics.statements++;
+            if (up) {
+                metrics.penUpMoves++;
+            } else {
+                metrics.segments++;
+            }
+        }
         if (!up) {
-            // simulate drawing by printing line segment
-            System.out.println(color + " " + x + " " + y + " " + newX + " " + newY);
+            // simulate drawing by handing the line segment to the sink
+            sink.accept(color, oldX, oldY, x, y);
+        }
+    }
+
+    /**
+     * Shifts the position by the given offset without drawing.
+     */
+    public void translate(double dx, double dy) {
+        if (!compensated) {
+            x += dx;
+            y += dy;
+            return;
         }
 
-        // update current position
-        x = newX;
-        y = newY;
+        if (x != sumX + errX || y != sumY + errY) {
+            // the position was set from outside; start summing from there
+            sumX = x;
+            sumY = y;
+            errX = 0;
+            errY = 0;
+        }
+
+        double t = sumX + dx;
+        errX += Math.abs(sumX) >= Math.abs(dx) ? (sumX - t) + dx : (dx - t) + sumX;
+        sumX = t;
+        t = sumY + dy;
+        errY += Math.abs(sumY) >= Math.abs(dy) ? (sumY - t) + dy : (dy - t) + sumY;
+        sumY = t;
+
+        x = sumX + errX;
+        y = sumY + errY;
     }
 
     /**
@@ -49,7 +149,8 @@ public class Leona {
      * @param newAngle degrees to turn left
      */
     public void turnLeft(int newAngle) {
-        angle += newAngle;
+        count();
+        angle = Math.floorMod(angle + newAngle % 360, 360);
     }
 
     /**
@@ -58,13 +159,15 @@ public class Leona {
      * @param newAngle degrees to turn right
      */
     public void turnRight(int newAngle) {
-        angle -= newAngle;
+        count();
+        angle = Math.floorMod(angle - newAngle % 360, 360);
     }
 
     /**
      * Lifts the pen up (no drawing while moving).
      */
     public void up() {
+        count();
         up = true;
     }
 
@@ -72,6 +175,7 @@ public class Leona {
      * Puts the pen down (drawing while moving).
      */
     public void down() {
+        count();
         up = false;
     }
 
@@ -81,6 +185,16 @@ public class Leona {
      * @param newColor new color in hex format (e.g., "#FF0000")
      */
     public void changeColor(String newColor) {
+        count();
         color = newColor;
     }
+
+    /**
+     * Counts one executed statement.
+     */
+    private void count() {
+        if (metrics != null) {
+            metrics.statements++;
+        }
+    }
 }
@@ -1,140 +1,479 @@
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * The Lexer class is responsible for reading and tokenizing input text
  * into a sequence of Tokens. It supports basic drawing commands and control
  * structures for a toy language similar in behavior to turtle graphics.
+ *
+ * Scanning is done by a hand-written state machine that walks the input one
+ * character at a time. Comments are stripped while characters are read in,
+ * so the scanner itself only ever sees the comment-free text.
+ *
+ * A Lexer built from an InputStream tokenizes everything up front into the
+ * tokens buffer. A Lexer built from a Reader or a file path streams instead:
+ * tokens are scanned on demand as the parser asks for them, so memory use
+ * does not grow with the size of the input. A streaming Lexer can also be
+ * told to scan ahead on a thread of its own (see scanAhead).
  */
 public class Lexer {
-    public String input;            // raw input as string (unused in this version)
-    public List<Token> tokens;     // list of all identified tokens
+    public TokenBuffer tokens;     // identified tokens (only the unread ones when streaming)
     private int currentToken;      // index of the current token (used during parsing)
+    private boolean streaming;     // whether tokens are scanned on demand
+    private TokenBuffer scanned;   // where scanned tokens go: tokens, or a batch for the ring
+    private TokenRing ring;        // tokens scanned ahead by the scanner thread, if started
+    public Metrics metrics;        // where to count and time reading and scanning, if anywhere
+
+    private Reader in;             // character source
+    private char[] raw;            // chunk most recently read from the source
+    private char[] buf;            // comment-stripped characters not yet scanned
+    private int pos;               // scanner position in buf
+    private int lim;               // number of valid characters in buf
+    private int commentStart;      // start of an unterminated comment in buf, or -1
+    private boolean eof;           // whether the source has been exhausted
+    private int row;               // current row in the input
+    private boolean gap;           // whether we are inside a run of unrecognized characters
+    private int lastRow;           // row of the last token scanned (0 if none)
+    private boolean done;          // whether the EOF token has been consumed
 
     /**
-     * Reads the input stream and returns its contents as a String.
-     * Handles skipping lines starting with '%'.
+     * Constructor: tokenizes the input stream and stores results in the tokens buffer.
+     * Also handles errors and row tracking.
      */
-    private static String readInput(InputStream f) throws java.io.IOException {
-        Reader stdin = new InputStreamReader(f);
-        StringBuilder buf = new StringBuilder();
-        char[] input = new char[1024];
-        int read;
+    public Lexer(InputStream in) throws IOException {
+        this(new InputStreamReader(in));
+        streaming = false;
 
-        while ((read = stdin.read(input)) != -1) {
-            if (read == '%') {
-                // skip comments
-                while ((read = stdin.read()) != '\n');
-            }
-            buf.append(input, 0, read);
+        do {
+            scan();
+        } while (tokens.type(tokens.size() - 1) != TokenType.EOF);
+    }
+
+    /**
+     * Constructor for streaming mode: tokens are read from the reader
+     * as they are asked for.
+     */
+    public Lexer(Reader in) {
+        this.in = in;
+        raw = new char[8192];
+        buf = new char[16384];
+        commentStart = -1;
+        row = 1;
+        tokens = new TokenBuffer(16);
+        scanned = tokens;
+        streaming = true;
+    }
+
+    /**
+     * Constructor over tokens that have already been scanned, ending with
+     * an EOF token, so that the same tokens can be parsed more than once.
+     */
+    public Lexer(TokenBuffer tokens) {
+        this.tokens = tokens;
+        scanned = tokens;
+    }
+
+    /**
+     * Constructor for streaming mode over a memory-mapped file.
+     */
+    public Lexer(Path file) throws IOException {
+        this(new MappedFileReader(file));
+    }
+
+    /**
+     * Moves scanning to a background thread for the rest of the input.
+     * The thread scans ahead of the parser and hands tokens over through
+     * a bounded TokenRing, so reading and scanning the input overlap with
+     * parsing and with whatever the caller does between tokens. Has no
+     * effect on a Lexer that has already tokenized everything.
+     */
+    public void scanAhead() {
+        if (!streaming || ring != null) {
+            return;
         }
+        ring = new TokenRing(1 << 14);
+        scanned = new TokenBuffer(512);
 
-        return buf.toString();
+        Thread scanner = new Thread(() -> {
+            try {
+                boolean end;
+                do {
+                    scan();
+                    end = scanned.type(scanned.size() - 1) == TokenType.EOF;
+                    if (end || scanned.size() >= 256) {
+                        ring.put(scanned);
+                        scanned.clear();
+                    }
+                } while (!end);
+            } catch (Throwable e) {
+                ring.put(scanned);  // the tokens before the failure still count
+                ring.fail(e);
+            }
+        }, "lexer");
+        scanner.setDaemon(true);
+        scanner.start();
     }
 
     /**
-     * Constructor: tokenizes the input stream and stores results in the tokens list.
-     * Also handles errors and row tracking.
+     * Scans forward until at least one more token has been added. At the
+     * end of input an EOF token is added, carrying the row of the last
+     * token (or 0 if there were none).
      */
-    public Lexer(InputStream in) throws java.io.IOException {
-        tokens = new ArrayList<>();
-        int inputPos = 0;
-        int currentRow = 1;
-        currentToken = 0;
-
-        String x = Lexer.readInput(in);
-        String input = x.replaceAll("%(.|\t)*\n", "\n"); // remove comments
-
-        // Regular expression for all supported token types
-        Pattern tokenPattern = Pattern.compile(
-            "(?i)FORW( |\t|\n)|(?i)BACK( |\t|\n)|(?i)LEFT( |\t|\n)|(?i)RIGHT( |\t|\n)|" +
-            "(?i)DOWN|(?i)UP|(?i)COLOR( |\t|\n)|" +
-            "(?i)REP[ |\t|\n]+\n?[1-9][0-9]*[ |\t|\n]|\\.|\"|" +
-            "[1-9][0-9]*|#(?i)[A-Za-z0-9]{6}|\n| +|\t+"
-        );
-
-        Matcher m = tokenPattern.matcher(input);
-
-        // Iterate through matches and convert them into tokens
-        while (m.find()) {
-            if (m.start() != inputPos) {
-                // Unrecognized characters between matches
-                tokens.add(new Token(TokenType.ERROR, currentRow));
+    private void scan() throws IOException {
+        int before = scanned.size();
+
+        while (scanned.size() == before) {
+            int c = peek(0);
+            if (c == -1) {
+                add(TokenType.EOF, 0, lastRow);
+                return;
             }
 
-            String match = m.group();
-
-            if (match.matches("\n")) {
-                currentRow++;
-            } else if (match.matches("(?i)FORW( |\t|\n)")) {
-                tokens.add(new Token(TokenType.FORW, currentRow));
-                if (match.endsWith("\n")) currentRow++;
-            } else if (match.matches("(?i)BACK( |\t|\n)")) {
-                tokens.add(new Token(TokenType.BACK, currentRow));
-                if (match.endsWith("\n")) currentRow++;
-            } else if (match.matches("(?i)LEFT( |\t|\n)")) {
-                tokens.add(new Token(TokenType.LEFT, currentRow));
-                if (match.endsWith("\n")) currentRow++;
-            } else if (match.matches("(?i)RIGHT( |\t|\n)")) {
-                tokens.add(new Token(TokenType.RIGHT, currentRow));
-                if (match.endsWith("\n")) currentRow++;
-            } else if (match.matches("(?i)DOWN")) {
-                tokens.add(new Token(TokenType.DOWN, currentRow));
-                if (match.endsWith("\n")) currentRow++;
-            } else if (match.matches("(?i)UP")) {
-                tokens.add(new Token(TokenType.UP, currentRow));
-                if (match.endsWith("\n")) currentRow++;
-            } else if (match.matches("(?i)COLOR( |\t|\n)")) {
-                tokens.add(new Token(TokenType.COLOR, currentRow));
-                if (match.endsWith("\n")) currentRow++;
-            } else if (match.matches("(?i)REP[ |\t|\n]+\n?[1-9][0-9]*[ |\t|\n]+")) {
-                tokens.add(new Token(TokenType.REP, currentRow));
-
-                // Adjust line count if REP includes newlines
-                Matcher m2 = Pattern.compile("\n").matcher(match);
-                while (m2.find()) currentRow++;
-
-                // Extract the numeric part of the REP command
-                if (match.matches("(.|\n|\t)*[0-9]+(.|\n|\t)*")) {
-                    String num = match.replaceAll("[^0-9]+", "");
-                    tokens.add(new Token(TokenType.DECIMAL, Integer.parseInt(num), currentRow));
+            int length = match(c);
+            if (length == 0) {
+                if (!gap) {
+                    add(TokenType.ERROR, 0, row);
+                    gap = true;
                 }
-            } else if (match.equals(".")) {
-                tokens.add(new Token(TokenType.PERIOD, currentRow));
-            } else if (match.equals("\"")) {
-                tokens.add(new Token(TokenType.QUOTE, currentRow));
-            } else if (Character.isDigit(match.charAt(0))) {
-                tokens.add(new Token(TokenType.DECIMAL, Integer.parseInt(match), currentRow));
-            } else if (match.charAt(0) == '#') {
-                tokens.add(new Token(TokenType.HEX, match, currentRow));
+                pos++;
+            } else {
+                gap = false;
+                pos += length;
+            }
+        }
+    }
+
+    private void add(TokenType type, int data, int tokenRow) {
+        scanned.add(type, data, tokenRow);
+        lastRow = tokenRow;
+    }
+
+    /**
+     * Tries to match a token starting at the current position, whose first
+     * character is c. Adds the resulting token(s) and returns the number of
+     * characters matched, or 0 if no token starts here.
+     */
+    private int match(int c) throws IOException {
+        switch (c) {
+            case '\n':
+                row++;
+                return 1;
+            case ' ':
+            case '\t':
+                return 1;
+            case '.':
+                add(TokenType.PERIOD, 0, row);
+                return 1;
+            case '"':
+                add(TokenType.QUOTE, 0, row);
+                return 1;
+            case '#':
+                return hex();
+            case 'F': case 'f':
+                return keyword("ORW", true, TokenType.FORW);
+            case 'B': case 'b':
+                return keyword("ACK", true, TokenType.BACK);
+            case 'L': case 'l':
+                return keyword("EFT", true, TokenType.LEFT);
+            case 'R': case 'r': {
+                int length = keyword("IGHT", true, TokenType.RIGHT);
+                return length != 0 ? length : rep();
+            }
+            case 'D': case 'd':
+                return keyword("OWN", false, TokenType.DOWN);
+            case 'U': case 'u':
+                return keyword("P", false, TokenType.UP);
+            case 'C': case 'c':
+                return keyword("OLOR", true, TokenType.COLOR);
+            default:
+                if (c >= '1' && c <= '9') {
+                    int length = digits(0);
+                    add(TokenType.DECIMAL, number(0, length), row);
+                    return length;
+                }
+                return 0;
+        }
+    }
+
+    /**
+     * Matches the rest of a keyword (case-insensitively) after its first letter.
+     * Keywords that take an argument must be followed by a space, tab or newline,
+     * which becomes part of the match.
+     */
+    private int keyword(String rest, boolean separated, TokenType type) throws IOException {
+        int length = rest.length() + 1;
+        for (int i = 1; i < length; i++) {
+            if (!letter(peek(i), rest.charAt(i - 1))) {
+                return 0;
             }
+        }
+
+        if (!separated) {
+            add(type, 0, row);
+            return length;
+        }
+
+        int sep = peek(length);
+        if (sep != ' ' && sep != '\t' && sep != '\n') {
+            return 0;
+        }
+        add(type, 0, row);
+        if (sep == '\n') row++;
+        return length + 1;
+    }
+
+    /**
+     * Matches REP followed by a repetition count. The count is separated from
+     * REP by spaces, tabs, newlines or '|', and is followed by one such character.
+     * Produces both the REP and the DECIMAL token.
+     */
+    private int rep() throws IOException {
+        if (!letter(peek(1), 'E') || !letter(peek(2), 'P')) {
+            return 0;
+        }
+
+        int length = 3;
+        int newlines = 0;
+        int c;
+        while (repSeparator(c = peek(length))) {
+            if (c == '\n') newlines++;
+            length++;
+        }
+        if (length == 3 || c < '1' || c > '9') {
+            return 0;
+        }
+
+        int start = length;
+        length += digits(start);
+        c = peek(length);
+        if (!repSeparator(c)) {
+            return 0;
+        }
+        if (c == '\n') newlines++;
+
+        int count = number(start, length - start);  // may fail, before anything is added
+        add(TokenType.REP, 0, row);
+        row += newlines;
+        add(TokenType.DECIMAL, count, row);
+        return length + 1;
+    }
+
+    /**
+     * Matches a color literal: '#' followed by exactly six letters or digits.
+     */
+    private int hex() throws IOException {
+        for (int i = 1; i <= 6; i++) {
+            int c = peek(i);
+            if (!(c >= '0' && c <= '9' || c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z')) {
+                return 0;
+            }
+        }
+        scanned.addColor(buf, pos, row);
+        lastRow = row;
+        return 7;
+    }
 
-            inputPos = m.end(); // advance position
+    /**
+     * Returns the length of the run of digits starting at the given offset.
+     */
+    private int digits(int offset) throws IOException {
+        int length = 0;
+        int c;
+        while ((c = peek(offset + length)) >= '0' && c <= '9') {
+            length++;
         }
+        return length;
+    }
 
-        // Handle any remaining characters that weren't matched
-        if (inputPos != input.length()) {
-            tokens.add(new Token(TokenType.ERROR, currentRow));
+    /**
+     * Converts the digits at the given offset to an int, failing the same way
+     * Integer.parseInt does for numbers that are too large.
+     */
+    private int number(int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = value * 10 + (buf[pos + offset + i] - '0');
+            if (value > Integer.MAX_VALUE) {
+                throw new NumberFormatException("For input string: \""
+                        + new String(buf, pos + offset, length) + "\"");
+            }
         }
+        return (int) value;
+    }
+
+    private static boolean letter(int c, char upper) {
+        return c == upper || c == (upper | 0x20);
+    }
+
+    private static boolean repSeparator(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '|';
+    }
 
-        // Append EOF token to mark end of input
-        if (tokens.size() != 0) {
-            int prevRow = tokens.get(tokens.size() - 1).getRow();
-            tokens.add(new Token(TokenType.EOF, prevRow));
+    /**
+     * Returns the character at the given offset from the scanner position,
+     * or -1 past the end of input. Reads more input as needed.
+     */
+    private int peek(int offset) throws IOException {
+        while (pos + offset >= available()) {
+            if (!fill()) return -1;
+        }
+        return buf[pos + offset];
+    }
+
+    /**
+     * Number of characters in buf that are safe to scan. Text after a '%'
+     * is held back until we know whether it is a comment.
+     */
+    private int available() {
+        return commentStart >= 0 ? commentStart : lim;
+    }
+
+    /**
+     * Reads the next chunk of input into buf, dropping already scanned
+     * characters and stripping comments on the way. A comment runs from '%'
+     * to the end of the line and is replaced by the newline that ends it;
+     * a '%' whose line does not end in '\n' is kept as ordinary text.
+     */
+    private boolean fill() throws IOException {
+        if (eof) return false;
+
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, lim - pos);
+            lim -= pos;
+            if (commentStart >= 0) commentStart -= pos;
+            pos = 0;
+        }
+
+        int read;
+        if (metrics != null) {
+            long start = System.nanoTime();
+            read = in.read(raw);
+            metrics.readNanos += System.nanoTime() - start;
+            metrics.characters += Math.max(read, 0);
         } else {
-            tokens.add(new Token(TokenType.EOF, 0));
+            read = in.read(raw);
+        }
+        if (read == -1) {
+            in.close();
+            eof = true;
+            commentStart = -1;  // unterminated comments are ordinary text
+            return true;
+        }
+
+        if (buf.length - lim < read) {
+            char[] bigger = new char[Math.max(buf.length * 2, lim + read)];
+            System.arraycopy(buf, 0, bigger, 0, lim);
+            buf = bigger;
+        }
+
+        for (int i = 0; i < read; i++) {
+            char c = raw[i];
+            if (commentStart >= 0) {
+                if (c == '\n') {
+                    lim = commentStart;
+                    commentStart = -1;
+                } else if (c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                    commentStart = -1;
+                }
+            } else if (c == '%') {
+                commentStart = lim;
+            }
+            buf[lim++] = c;
+        }
+        return true;
+    }
+
+    /**
+     * Makes sure the current token has been scanned.
+     */
+    private void ensureToken() {
+        if (currentToken < tokens.size()) {
+            return;
+        }
+        try {
+            // every token in the buffer has been read, so start it over
+            tokens.clear();
+            currentToken = 0;
+            if (ring != null) {
+                ring.take(tokens);
+            } else if (metrics != null) {
+                long start = System.nanoTime();
+                scan();
+                metrics.lexNanos += System.nanoTime() - start;
+            } else {
+                scan();
+            }
+            if (metrics != null) {
+                for (int i = 0; i < tokens.size(); i++) {
+                    metrics.tokens[tokens.type(i).ordinal()]++;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
+    /**
+     * Returns the type of the current token without advancing.
+     */
+    public TokenType peekType() {
+        if (streaming) ensureToken();
+        return tokens.type(currentToken);
+    }
+
+    /**
+     * Returns the numeric value of the current token without advancing.
+     */
+    public int peekData() {
+        if (streaming) ensureToken();
+        return tokens.data(currentToken);
+    }
+
+    /**
+     * Returns the row of the current token without advancing.
+     */
+    public int peekRow() {
+        if (streaming) ensureToken();
+        return tokens.row(currentToken);
+    }
+
+    /**
+     * Returns the color of the current token (if it is HEX) without advancing.
+     */
+    public String peekColor() {
+        if (streaming) ensureToken();
+        return tokens.color(currentToken);
+    }
+
+    /**
+     * Moves past the current token.
+     */
+    public void advance() {
+        if (streaming) {
+            ensureToken();
+            done = tokens.type(currentToken) == TokenType.EOF;
+        }
+        currentToken++;
+    }
+
     /**
      * Returns the current token without advancing the token pointer.
      */
     public Token peekToken() {
+        if (streaming) ensureToken();
         return tokens.get(currentToken);
     }
 
@@ -143,7 +482,7 @@ public class Lexer {
      */
     public Token nextToken() {
         Token res = peekToken();
-        currentToken++;
+        advance();
         return res;
     }
 
@@ -151,6 +490,80 @@ public class Lexer {
      * Checks whether there are more tokens to process.
      */
     public boolean hasMoreTokens() {
+        if (streaming) {
+            return !done;
+        }
         return currentToken < tokens.size();
     }
 }
+
+/**
+ * A Reader over a memory-mapped file. The file is mapped a window at a time
+ * and decoded with the platform charset, the same one InputStreamReader uses.
+ */
+class MappedFileReader extends Reader {
+    private static final long WINDOW = 1 << 26;  // bytes mapped at a time
+
+    private final FileChannel channel;
+    private final CharsetDecoder decoder;
+    private final long size;
+    private long mapped;           // file offset just past the current window
+    private ByteBuffer bytes;      // undecoded part of the current window
+    private boolean flushed;       // whether the decoder has been flushed at end of file
+
+    public MappedFileReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        size = channel.size();
+        bytes = ByteBuffer.allocate(0);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+
+        while (out.position() == off && !flushed) {
+            if (!bytes.hasRemaining() || bytes.remaining() < 4 && mapped < size) {
+                remap();
+            }
+            boolean last = mapped == size;
+            CoderResult result = decoder.decode(bytes, out, last);
+            if (result.isOverflow()) {
+                break;
+            }
+            if (last && !bytes.hasRemaining()) {
+                decoder.flush(out);
+                flushed = true;
+            }
+        }
+
+        int read = out.position() - off;
+        return read == 0 && flushed ? -1 : read;
+    }
+
+    /**
+     * Maps the next window of the file, carrying over any bytes of a
+     * character that was split across the window boundary.
+     */
+    private void remap() throws IOException {
+        if (mapped == size) return;
+        long length = Math.min(WINDOW, size - mapped);
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, mapped, length);
+        mapped += length;
+
+        if (bytes.hasRemaining()) {
+            ByteBuffer joined = ByteBuffer.allocate(bytes.remaining() + window.remaining());
+            joined.put(bytes).put(window).flip();
+            bytes = joined;
+        } else {
+            bytes = window;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
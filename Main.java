@@ -1,4 +1,17 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 /*
  * Grammar definition for the toy programming language:
@@ -12,21 +25,477 @@ import java.io.IOException;
  */
 
 // Entry point for the interpreter
+//
+// Usage: java Main [options] [program file]
+//   --binary FILE   write segments to FILE in the binary format (see BinarySegmentSink)
+//   --float32       with --binary, store coordinates as floats instead of doubles
+//   --threads N     produce the segments of large loops on N threads
+//   --compensated   accumulate positions with compensated summation
+//   --decimals N    write coordinates rounded to N decimals (0 to 15) instead
+//                   of in full, like Double.toString (see DoubleFormatter);
+//                   only for the text output
+//   --pipeline      run each statement as soon as it is parsed, with scanning
+//                   and writing on threads of their own; segments of the
+//                   statements before a syntax error are output before the
+//                   error is reported (cannot be combined with --binary)
+//   --cache DIR     keep the compiled program in DIR (see ProgramCache), and
+//                   use the one there if the same program was run before
+//   --validate      only check the program: print every syntax error found,
+//                   one per line, and exit with status 1 if there were any
+//   --metrics FILE  count and time each phase of the run (see Metrics) and
+//                   write a JSON summary to FILE at the end ("-" for standard
+//                   error); the phases are also recorded as JFR events when a
+//                   flight recording is running (cannot be combined with
+//                   --pipeline; with --cache, reading and parsing count as
+//                   compiling)
+//   --coalesce      drop segments that were already drawn and merge runs of
+//                   segments that continue in a straight line (see
+//                   CoalescingSegmentSink); a report of how many segments
+//                   were removed goes to standard error
+//   --coalesce-limit N
+//                   like --coalesce, but remember at most N segments when
+//                   looking for duplicates, to bound memory on huge outputs
+//   --viewport XMIN,YMIN,XMAX,YMAX
+//                   only output what is drawn inside this box, with segments
+//                   cut at its edges (see ClippingSegmentSink); passes through
+//                   loops that cannot draw inside it are skipped, so a small
+//                   viewport on a large drawing is fast (loops are then not
+//                   run on several threads)
+//   --png FILE      draw the segments into an image and write it to FILE as a
+//                   PNG (see RasterSegmentSink) instead of printing them; with
+//                   --threads, tiles of the image are drawn on N threads
+//                   (cannot be combined with --binary or --pipeline)
+//   --size WxH      size of the image in pixels (default 1024x1024)
+//   --scale S       pixels per unit of the drawing (default 1)
+//   --center X,Y    point of the drawing in the middle of the image (default 0,0)
+//   --estimate      only work out (see Cost) how many statements the program
+//                   would execute and how many segments it would draw, and
+//                   print them without running it
+//   --max-statements N, --max-segments N
+//                   refuse to run a program that would execute more than N
+//                   statements or draw more than N segments; this is checked
+//                   before anything runs, and the exit status is 1
+//                   (--estimate and the limits cannot be combined with
+//                   --cache or --pipeline)
+//   --instanced     write each drawing loop as one pass through its body plus
+//                   where every pass starts (see InstanceWriter), nested for
+//                   nested loops, instead of as all of its segments;
+//                   InstanceReader expands this back into the text output
+//                   (only for the text output, and cannot be combined with
+//                   --compensated, --decimals, --pipeline, --metrics,
+//                   --coalesce or --viewport; loops are then not run on
+//                   several threads)
+//   --optimize      rewrite the parse tree before running it (see Optimizer):
+//                   fold turns, drop pen and color changes that have no effect,
+//                   unwrap REP 1 and drop REP 0; the output is the same, and a
+//                   report of the statements removed goes to standard error
+//                   (cannot be combined with --cache or --pipeline)
 public class Main {
-    public static void main(String[] args) throws IOException, SyntaxError {
-        // Initialize the lexer with input from standard input (usually piped or redirected)
-        Lexer lexer = new Lexer(System.in);
+    public static void main(String[] args) throws IOException {
+        String input = null;
+        String binary = null;
+        boolean float32 = false;
+        int threads = 1;
+        boolean compensated = false;
+        int decimals = DoubleFormatter.SHORTEST;
+        boolean pipeline = false;
+        String cache = null;
+        boolean validate = false;
+        String metricsFile = null;
+        long coalesce = 0;  // segments remembered by CoalescingSegmentSink, 0 to not coalesce
+        Viewport viewport = null;
+        Raster raster = null;
+        boolean estimate = false;
+        long maxStatements = Long.MAX_VALUE;
+        long maxSegments = Long.MAX_VALUE;
+        boolean instanced = false;
+        boolean optimize = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--binary")) {
+                binary = args[++i];
+            } else if (args[i].equals("--float32")) {
+                float32 = true;
+            } else if (args[i].equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--compensated")) {
+                compensated = true;
+            } else if (args[i].equals("--decimals")) {
+                decimals = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--pipeline")) {
+                pipeline = true;
+            } else if (args[i].equals("--cache")) {
+                cache = args[++i];
+            } else if (args[i].equals("--validate")) {
+                validate = true;
+            } else if (args[i].equals("--metrics")) {
+                metricsFile = args[++i];
+            } else if (args[i].equals("--coalesce")) {
+                coalesce = Long.MAX_VALUE;
+            } else if (args[i].equals("--coalesce-limit")) {
+                coalesce = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--viewport")) {
+                viewport = Viewport.parse(args[++i]);
+            } else if (args[i].equals("--png")) {
+                raster = raster != null ? raster : new Raster();
+                raster.file = args[++i];
+            } else if (args[i].equals("--size")) {
+                raster = raster != null ? raster : new Raster();
+                String[] size = args[++i].split("x");
+                raster.width = Integer.parseInt(size[0]);
+                raster.height = Integer.parseInt(size[1]);
+            } else if (args[i].equals("--scale")) {
+                raster = raster != null ? raster : new Raster();
+                raster.scale = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--center")) {
+                raster = raster != null ? raster : new Raster();
+                String[] center = args[++i].split(",");
+                raster.centerX = Double.parseDouble(center[0]);
+                raster.centerY = Double.parseDouble(center[1]);
+            } else if (args[i].equals("--estimate")) {
+                estimate = true;
+            } else if (args[i].equals("--max-statements")) {
+                maxStatements = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--max-segments")) {
+                maxSegments = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--instanced")) {
+                instanced = true;
+            } else if (args[i].equals("--optimize")) {
+                optimize = true;
+            } else {
+                input = args[i];
+            }
+        }
+        if (pipeline && binary != null) {
+            // the palette of the binary format needs all colors of the program up front
+            System.err.println("--pipeline cannot be combined with --binary");
+            System.exit(1);
+        }
+        if (raster != null && raster.file == null) {
+            System.err.println("--size, --scale and --center need --png");
+            System.exit(1);
+        }
+        if (raster != null && (binary != null || pipeline)) {
+            System.err.println("--png cannot be combined with --binary or --pipeline");
+            System.exit(1);
+        }
+        if (decimals != DoubleFormatter.SHORTEST && (decimals < 0 || decimals > DoubleFormatter.MAX_DECIMALS)) {
+            System.err.println("--decimals must be from 0 to " + DoubleFormatter.MAX_DECIMALS);
+            System.exit(1);
+        }
+        if (decimals != DoubleFormatter.SHORTEST && (binary != null || raster != null)) {
+            System.err.println("--decimals cannot be combined with --binary or --png");
+            System.exit(1);
+        }
+        if (pipeline && cache != null) {
+            // a pipelined run never has the whole program compiled at once
+            System.err.println("--pipeline cannot be combined with --cache");
+            System.exit(1);
+        }
+        if (pipeline && metricsFile != null) {
+            // the phases of a pipelined run all overlap, on different threads
+            System.err.println("--pipeline cannot be combined with --metrics");
+            System.exit(1);
+        }
+        boolean limited = estimate || maxStatements != Long.MAX_VALUE || maxSegments != Long.MAX_VALUE;
+        if (limited && (pipeline || cache != null)) {
+            // the cost is worked out from the parse tree of the whole program
+            System.err.println("--estimate and the limits cannot be combined with --cache or --pipeline");
+            System.exit(1);
+        }
+        if (instanced && (binary != null || raster != null || compensated
+                || decimals != DoubleFormatter.SHORTEST || pipeline || metricsFile != null
+                || coalesce > 0 || viewport != null)) {
+            // the passes are replayed from their moves, which must be summed
+            // as Leona sums them and written out in full, one after the other
+            System.err.println("--instanced cannot be combined with --binary, --png, --compensated, "
+                    + "--decimals, --pipeline, --metrics, --coalesce or --viewport");
+            System.exit(1);
+        }
+        if (optimize && (pipeline || cache != null)) {
+            // the optimizer works on the parse tree of the whole program
+            System.err.println("--optimize cannot be combined with --cache or --pipeline");
+            System.exit(1);
+        }
+        Metrics metrics = metricsFile != null ? new Metrics() : null;
+
+        // Initialize a streaming lexer over the program file,
+        // or over standard input (usually piped or redirected) if there is none.
+        // With a cache the whole text is needed to look the program up, so
+        // it is read in compile instead.
+        Lexer lexer = null;
+        if (cache == null || validate) {
+            if (input != null) {
+                lexer = new Lexer(Paths.get(input));
+            } else {
+                lexer = new Lexer(new InputStreamReader(System.in));
+            }
+            lexer.metrics = metrics;
+        }
+
+        if (validate) {
+            Parser parser = new Parser(lexer);
+            parser.metrics = metrics;
+            PhaseEvent phase = metrics != null ? metrics.begin("parse") : null;
+            List<Diagnostic> diagnostics = parser.validate();
+            end(metrics, phase);
+            for (Diagnostic diagnostic : diagnostics) {
+                System.out.println(diagnostic);
+            }
+            report(metrics, metricsFile);
+            if (!diagnostics.isEmpty()) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        boolean refused = false;
+        try {
+            if (pipeline) {
+                runPipelined(new Parser(lexer), threads, compensated, decimals, coalesce, viewport);
+            } else if (cache != null) {
+                run(cached(input, cache, metrics), binary, float32, raster, threads, compensated,
+                        decimals, coalesce, viewport, instanced, -1, metrics);
+            } else {
+                Parser parser = new Parser(lexer);
+                ParseTree tree = parse(parser, metrics);
+                if (optimize) {
+                    tree = optimize(tree, parser.nodes, metrics);
+                }
+                Cost cost = tree.cost();
+                long segments = cost.segments(true);  // Leona starts with the pen up
+
+                if (estimate) {
+                    System.out.println("statements " + Cost.format(cost.statements));
+                    System.out.println("segments   " + Cost.format(segments));
+                } else if (cost.statements > maxStatements) {
+                    System.err.println("the program would execute " + Cost.format(cost.statements)
+                            + " statements, more than the limit of " + maxStatements);
+                    refused = true;
+                } else if (segments > maxSegments) {
+                    System.err.println("the program would draw " + Cost.format(segments)
+                            + " segments, more than the limit of " + maxSegments);
+                    refused = true;
+                } else {
+                    run(compile(tree, viewport != null, metrics), binary, float32, raster, threads, compensated,
+                            decimals, coalesce, viewport, instanced, segments, metrics);
+                }
+            }
+        } catch (SyntaxError e) {
+            System.out.println(e.getMessage());
+        }
+        report(metrics, metricsFile);
+        if (refused) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes the metrics summary, if metrics were kept.
+     */
+    private static void report(Metrics metrics, String file) throws IOException {
+        if (metrics == null) {
+            return;
+        }
+        if (file.equals("-")) {
+            metrics.finish(System.err);
+        } else {
+            try (PrintStream out = new PrintStream(file, "UTF-8")) {
+                metrics.finish(out);
+            }
+        }
+    }
+
+    /**
+     * Takes the compiled program from the cache directory, or compiles it
+     * and stores it there.
+     */
+    private static Program cached(String input, String cache, Metrics metrics)
+            throws IOException, SyntaxError {
+        PhaseEvent phase = metrics != null ? metrics.begin("compile") : null;
+        try {
+            byte[] text = input != null ? Files.readAllBytes(Paths.get(input)) : System.in.readAllBytes();
+            return new ProgramCache(Long.MAX_VALUE, Paths.get(cache)).compile(text);
+        } finally {
+            end(metrics, phase);
+        }
+    }
+
+    /**
+     * Parses the input into a parse tree.
+     */
+    private static ParseTree parse(Parser parser, Metrics metrics) throws SyntaxError {
+        parser.metrics = metrics;
+        PhaseEvent phase = metrics != null ? metrics.begin("parse") : null;
+        try {
+            return parser.parse();
+        } finally {
+            end(metrics, phase);
+        }
+    }
+
+    /**
+     * Optimizes the parsed tree, interning new nodes in the parser's
+     * table, and reports what was removed. This counts as compiling.
+     */
+    private static ParseTree optimize(ParseTree tree, NodeTable nodes, Metrics metrics) {
+        PhaseEvent phase = metrics != null ? metrics.begin("compile") : null;
+        Optimizer optimizer = new Optimizer(nodes);
+        ParseTree result = optimizer.optimize(tree);
+        end(metrics, phase);
+        System.err.println(optimizer);
+        return result;
+    }
+
+    /**
+     * Compiles the parsed tree, keeping the extents of its loops if asked
+     * to (for culling with a viewport).
+     */
+    private static Program compile(ParseTree tree, boolean extents, Metrics metrics) {
+        PhaseEvent phase = metrics != null ? metrics.begin("compile") : null;
+        Program program = Program.compile(tree, extents);
+        end(metrics, phase);
+        return program;
+    }
+
+    private static void end(Metrics metrics, PhaseEvent phase) {
+        if (metrics != null) {
+            metrics.end(phase);
+        }
+    }
+
+    /**
+     * Runs a compiled program. If the number of segments it draws is
+     * known (not -1), the output buffer is made no larger than needed.
+     */
+    private static void run(Program program, String binary, boolean float32, Raster raster,
+            int threads, boolean compensated, int decimals, long coalesce, Viewport viewport,
+            boolean instanced, long segments, Metrics metrics) throws IOException {
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+
+        // Choose where the drawn segments go
+        SegmentSink sink;
+        FileChannel file = null;
+        RasterSegmentSink image = null;
+        if (raster != null) {
+            sink = image = new RasterSegmentSink(raster.width, raster.height, raster.scale,
+                    raster.centerX, raster.centerY, pool);
+        } else if (binary != null) {
+            file = FileChannel.open(Paths.get(binary), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            Set<String> palette = new LinkedHashSet<>();
+            palette.add("#0000FF");
+            palette.addAll(Arrays.asList(program.colors));
+            sink = new BinarySegmentSink(file, palette.toArray(new String[0]), float32,
+                    bufferSize(segments, 36));
+        } else {
+            sink = new TextSegmentSink(new FileOutputStream(FileDescriptor.out).getChannel(),
+                    bufferSize(segments, 128), decimals);
+        }
+        InstanceWriter instances = instanced ? new InstanceWriter((TextSegmentSink) sink) : null;
+        CoalescingSegmentSink coalescing = null;
+        if (coalesce > 0) {
+            sink = coalescing = new CoalescingSegmentSink(sink, 1e-6, coalesce);
+        }
+        if (viewport != null) {
+            sink = new ClippingSegmentSink(sink, viewport);
+        }
+        if (metrics != null) {
+            sink = metrics.time(sink);
+        }
 
         // Create a drawing agent (Leona) with default starting position, angle, and color
-        Leona leona = new Leona(0, 0, 0, true, "#0000FF");
+        Leona leona = new Leona(0, 0, 0, true, "#0000FF", sink);
+        leona.compensated = compensated;
+        leona.metrics = metrics;
+        leona.viewport = viewport;
+        leona.instances = instances;
 
-        // Create a parser using the lexer
-        Parser parser = new Parser(lexer);
+        // Run the program using the drawing agent
+        PhaseEvent phase = metrics != null ? metrics.begin("run") : null;
+        if (pool != null) {
+            program.run(leona, pool);
+        } else {
+            program.run(leona);
+        }
+        sink.flush();
+        if (image != null) {
+            image.write(Paths.get(raster.file));
+        }
+        end(metrics, phase);
+        if (file != null) {
+            file.close();
+        }
+        if (coalescing != null) {
+            System.err.println(coalescing);
+        }
+    }
+
+    /**
+     * Size of an output buffer for the given number of segments of at
+     * most the given size each: large enough for all of them, but no
+     * smaller than 4 KB and no larger than 1 MB.
+     */
+    private static int bufferSize(long segments, int size) {
+        if (segments < 0) {
+            return 1 << 20;
+        }
+        return (int) Math.max(1 << 12, Math.min(1 << 20, Cost.multiply(segments, size) + 1024));
+    }
 
-        // Parse the input into a parse tree
-        ParseTree result = parser.parse();
+    /**
+     * Runs each top-level statement as soon as it has been parsed. The
+     * lexer scans ahead on a thread of its own and the segments are
+     * formatted and written on another, so reading, running and writing
+     * all overlap. The output is the same as from run, but it starts
+     * before the whole program has been read, so a syntax error is only
+     * found after the segments of the statements before it are out.
+     */
+    private static void runPipelined(Parser parser, int threads, boolean compensated, int decimals,
+            long coalesce, Viewport viewport) throws SyntaxError {
+        parser.lexer.scanAhead();
+        parser.nodes = null;  // each statement is dropped once it has run; a table would keep them all
+
+        SegmentSink sink = new AsyncSegmentSink(
+                new TextSegmentSink(new FileOutputStream(FileDescriptor.out).getChannel(), 1 << 20, decimals));
+        CoalescingSegmentSink coalescing = null;
+        if (coalesce > 0) {
+            // in front of the writer thread, so what is merged does not depend on its timing
+            sink = coalescing = new CoalescingSegmentSink(sink, 1e-6, coalesce);
+        }
+        if (viewport != null) {
+            sink = new ClippingSegmentSink(sink, viewport);
+        }
+        Leona leona = new Leona(0, 0, 0, true, "#0000FF", sink);
+        leona.compensated = compensated;
+        leona.viewport = viewport;
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+
+        try {
+            ParseTree statement;
+            while ((statement = parser.nextStatement()) != null) {
+                Program program = Program.compile(statement);
+                if (pool != null) {
+                    program.run(leona, pool);
+                } else {
+                    program.run(leona);
+                }
+            }
+        } finally {
+            sink.flush();  // before any error message, to keep the output in order
+            if (coalescing != null) {
+                System.err.println(coalescing);
+            }
+        }
+    }
 
-        // Evaluate the parsed tree using the drawing agent
-        result.evaluate(leona);
+    /**
+     * Where and how to draw the image, when the output is a PNG.
+     */
+    private static class Raster {
+        String file;
+        int width = 1024, height = 1024;
+        double scale = 1;
+        double centerX, centerY;
     }
 }
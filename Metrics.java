@@ -0,0 +1,256 @@
+import java.io.PrintStream;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Counters and timings of one run, filled in by the Lexer, the Parser,
+ * Leona and Program when they are given a Metrics object. They all keep a
+ * reference that is null unless metrics were asked for, so with metrics
+ * off every hook costs one null check, and nothing is timed or counted.
+ *
+ * Phases overlap (the parser pulls tokens from the lexer, which reads the
+ * input as it goes; running hands segments to the sink as they are drawn),
+ * so the time of each phase is what remains after taking out the phases
+ * nested in it:
+ *
+ *   read     reading characters from the input
+ *   lex      scanning them into tokens
+ *   parse    building the parse tree
+ *   compile  compiling the tree to a Program
+ *   run      running the program
+ *   output   formatting and writing the segments
+ *
+ * The output phase is timed by wrapping the sink (see time), and is
+ * nested in the run phase, which should therefore include the final flush.
+ * Segments of loops run in parallel are formatted into forked sinks on
+ * other threads, and that work counts as running.
+ *
+ * The parse, compile and run phases are also committed as JDK
+ * Flight Recorder events (leona.Phase), and finish commits one
+ * leona.Summary event with all the counters. Like all JFR events they
+ * cost next to nothing unless a recording is running.
+ *
+ * Statements are counted as they are executed, so for a non-drawing loop
+ * whose iterations are mostly skipped (see Program), only the passes
+ * actually run count.
+ */
+public class Metrics {
+    public long characters;            // characters read from the input
+    public final long[] tokens = new long[TokenType.values().length];  // tokens scanned, by type
+    public long nodes;                 // parse tree nodes built
+    public long sharedNodes;           // of those, replaced by an identical one (see NodeTable)
+    public int maxRepDepth;            // deepest REP nesting
+    public long statements;            // statements executed
+    public long segments;              // moves with the pen down
+    public long penUpMoves;            // moves with the pen up
+
+    // Time spent in each phase, in nanoseconds, with nested phases included
+    public long readNanos, lexNanos, parseNanos, compileNanos, runNanos, outputNanos;
+
+    /**
+     * Starts timing a phase; pass the result to end when it is over.
+     */
+    public PhaseEvent begin(String phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.phase = phase;
+        event.start = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends a phase started with begin, adding its time to the phase of
+     * the same name.
+     */
+    public void end(PhaseEvent event) {
+        long nanos = System.nanoTime() - event.start;
+        event.commit();
+        switch (event.phase) {
+            case "parse":
+                parseNanos += nanos;
+                break;
+            case "compile":
+                compileNanos += nanos;
+                break;
+            case "run":
+                runNanos += nanos;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown phase " + event.phase);
+        }
+    }
+
+    /**
+     * Returns a sink that adds the time spent in target to the output phase.
+     */
+    public SegmentSink time(SegmentSink target) {
+        return new TimedSegmentSink(target, this);
+    }
+
+    public long tokenCount() {
+        long sum = 0;
+        for (long count : tokens) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    /**
+     * Commits the summary event and writes the summary as JSON.
+     */
+    public void finish(PrintStream out) {
+        SummaryEvent event = new SummaryEvent();
+        event.characters = characters;
+        event.tokens = tokenCount();
+        event.nodes = nodes;
+        event.sharedNodes = sharedNodes;
+        event.maxRepDepth = maxRepDepth;
+        event.statements = statements;
+        event.segments = segments;
+        event.penUpMoves = penUpMoves;
+        event.read = read();
+        event.lex = lex();
+        event.parse = parse();
+        event.compile = compileNanos;
+        event.run = run();
+        event.output = outputNanos;
+        event.commit();
+
+        out.println(toJson());
+        out.flush();
+    }
+
+    // Each phase without the phases nested in it
+    public long read() {
+        return readNanos;
+    }
+
+    public long lex() {
+        return lexNanos - readNanos;
+    }
+
+    public long parse() {
+        return parseNanos - lexNanos;
+    }
+
+    public long run() {
+        return runNanos - outputNanos;
+    }
+
+    /**
+     * Returns the summary as one JSON object.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"characters\":").append(characters);
+        json.append(",\"tokens\":{");
+        TokenType[] types = TokenType.values();
+        for (int i = 0; i < types.length; i++) {
+            json.append(i == 0 ? "" : ",").append('"').append(types[i]).append("\":").append(tokens[i]);
+        }
+        json.append("},\"nodes\":").append(nodes);
+        json.append(",\"sharedNodes\":").append(sharedNodes);
+        json.append(",\"maxRepDepth\":").append(maxRepDepth);
+        json.append(",\"statements\":").append(statements);
+        json.append(",\"segments\":").append(segments);
+        json.append(",\"penUpMoves\":").append(penUpMoves);
+        json.append(",\"nanos\":{\"read\":").append(read());
+        json.append(",\"lex\":").append(lex());
+        json.append(",\"parse\":").append(parse());
+        json.append(",\"compile\":").append(compileNanos);
+        json.append(",\"run\":").append(run());
+        json.append(",\"output\":").append(outputNanos);
+        return json.append("}}").toString();
+    }
+}
+
+/**
+ * A JFR event spanning one phase of a run.
+ */
+@Name("leona.Phase")
+@Label("Phase")
+@Category("Leona")
+@Description("One phase of running a program")
+class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    transient long start;  // System.nanoTime() at begin, for Metrics
+}
+
+/**
+ * A JFR event with the counters of a whole run.
+ */
+@Name("leona.Summary")
+@Label("Run Summary")
+@Category("Leona")
+@Description("Counters and phase times of a whole run")
+class SummaryEvent extends Event {
+    @Label("Characters Read")
+    long characters;
+    @Label("Tokens")
+    long tokens;
+    @Label("Tree Nodes")
+    long nodes;
+    @Label("Shared Tree Nodes")
+    long sharedNodes;
+    @Label("Max REP Depth")
+    int maxRepDepth;
+    @Label("Statements Executed")
+    long statements;
+    @Label("Segments Drawn")
+    long segments;
+    @Label("Pen-up Moves")
+    long penUpMoves;
+    @Label("Read") @Timespan
+    long read;
+    @Label("Lex") @Timespan
+    long lex;
+    @Label("Parse") @Timespan
+    long parse;
+    @Label("Compile") @Timespan
+    long compile;
+    @Label("Run") @Timespan
+    long run;
+    @Label("Output") @Timespan
+    long output;
+}
+
+/**
+ * Adds the time spent in another sink to the output phase of a Metrics.
+ */
+class TimedSegmentSink implements SegmentSink {
+    private final SegmentSink target;
+    private final Metrics metrics;
+
+    TimedSegmentSink(SegmentSink target, Metrics metrics) {
+        this.target = target;
+        this.metrics = metrics;
+    }
+
+    public void accept(String color, double x1, double y1, double x2, double y2) {
+        long start = System.nanoTime();
+        target.accept(color, x1, y1, x2, y2);
+        metrics.outputNanos += System.nanoTime() - start;
+    }
+
+    public void flush() {
+        long start = System.nanoTime();
+        target.flush();
+        metrics.outputNanos += System.nanoTime() - start;
+    }
+
+    public SegmentSink fork() {
+        return target.fork();
+    }
+
+    public void join(SegmentSink part) {
+        long start = System.nanoTime();
+        target.join(part);
+        metrics.outputNanos += System.nanoTime() - start;
+    }
+}
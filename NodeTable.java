@@ -0,0 +1,77 @@
+/**
+ * Hash-consing for parse trees: hands out one shared node for all the
+ * nodes that are the same. Nodes are interned bottom-up as the parser
+ * builds them, so the children of a node are already shared, and two
+ * nodes are the same exactly if they have the same fields and the very
+ * same children (see ParseTree.sameAs). A block that occurs many times in
+ * a program is then one subtree referred to from many places, and what is
+ * worked out about it (effect, cost, extent) is only worked out once.
+ *
+ * The nodes are kept in an open-addressing table along with their hashes.
+ */
+class NodeTable {
+    private ParseTree[] nodes = new ParseTree[1024];
+    private int[] hashes = new int[1024];
+    private int size;
+
+    public long lookups;  // nodes interned
+    public long shared;   // of those, replaced by a node already in the table
+
+    /**
+     * Returns the node in the table that is the same as node, or adds
+     * node and returns it if there is none.
+     */
+    public ParseTree intern(ParseTree node) {
+        lookups++;
+        int hash = mix(node.shallowHash());
+        int mask = nodes.length - 1;
+        int slot = hash & mask;
+        while (nodes[slot] != null) {
+            if (hashes[slot] == hash && nodes[slot].sameAs(node)) {
+                shared++;
+                return nodes[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        nodes[slot] = node;
+        hashes[slot] = hash;
+        if (++size * 2 > nodes.length) {
+            grow();
+        }
+        return node;
+    }
+
+    /**
+     * Number of different nodes in the table.
+     */
+    public int size() {
+        return size;
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Doubles the table, moving every node to its slot in the new one.
+     */
+    private void grow() {
+        ParseTree[] oldNodes = nodes;
+        int[] oldHashes = hashes;
+        nodes = new ParseTree[oldNodes.length * 2];
+        hashes = new int[oldNodes.length * 2];
+        int mask = nodes.length - 1;
+        for (int i = 0; i < oldNodes.length; i++) {
+            if (oldNodes[i] != null) {
+                int slot = oldHashes[i] & mask;
+                while (nodes[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                nodes[slot] = oldNodes[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,411 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites a parse tree into a smaller one that draws exactly the same
+ * segments, so that less is run inside hot loops:
+ *
+ * - consecutive turns become one turn, and turns by a multiple of 360
+ *   degrees are dropped;
+ * - UP, DOWN and COLOR are dropped when the pen or color is already so,
+ *   or when it is set again before anything could be drawn with it;
+ * - REP 1 is replaced by its body, and REP 0 (or a REP whose body ends up
+ *   empty) is dropped;
+ * - consecutive moves with the pen up become one move, but only if every
+ *   turn in the program is a multiple of 90 degrees and the whole path is
+ *   shorter than 2^53 steps. Leona then only ever moves along the axes by
+ *   whole steps, so every position is a whole number and the sums are
+ *   exact whichever way they are grouped. In any other program, moving by
+ *   a + b gives other last bits than moving by a and then by b, which the
+ *   later segments would show.
+ *
+ * What pen and color a statement starts with is followed through each
+ * sequence, starting from Leona's (pen up, #0000FF). A loop body is
+ * rewritten for what holds at the start of every pass. The parser shares
+ * identical subtrees, so nodes are never changed: rewritten parts are new
+ * nodes, interned in the parser's NodeTable if there is one, and a
+ * subtree is only rewritten once for each pen and color it can start with.
+ *
+ * The statements executed are fewer, so metrics count fewer of them.
+ */
+public class Optimizer {
+    private static final int UNKNOWN = -1;  // pen not known: otherwise 1 (up) or 0 (down), as in Effect
+
+    private final NodeTable nodes;  // where new nodes are interned, if anywhere
+    private boolean foldMoves;      // whether moves with the pen up may be folded
+    private final Map<ParseTree, Map<String, ParseTree[]>> rewritten = new IdentityHashMap<>();
+    private final Map<ParseTree, Long> sizes = new IdentityHashMap<>();
+    private final Map<ParseTree, Object> colors = new IdentityHashMap<>();  // lastColor, or NO_COLOR
+    private static final Object NO_COLOR = new Object();
+
+    public long before, after;  // statements in the tree as written, before and after
+    // What was rewritten; a shared subtree is only rewritten once, so these
+    // can be fewer than the statements it removed in all the places it occurs
+    public long turnsFolded, movesFolded, pensDropped, colorsDropped, loopsUnwrapped, loopsDeleted;
+
+    /**
+     * An optimizer interning the nodes it builds in the given table, which
+     * can be null.
+     */
+    public Optimizer(NodeTable nodes) {
+        this.nodes = nodes;
+    }
+
+    /**
+     * Returns the optimized tree.
+     */
+    public ParseTree optimize(ParseTree tree) {
+        foldMoves = onAxes(tree, new IdentityHashMap<>()) && length(tree, new IdentityHashMap<>()) < 0x1p53;
+        before = size(tree);
+
+        // the program as a whole is followed by nothing, so state changes at its end are dead
+        List<ParseTree> statements = new ArrayList<>();
+        rewrite(tree, 1, "#0000FF", statements);
+        simplify(statements, 1, "#0000FF", true);
+        ParseTree result = sequence(statements);
+
+        after = size(result);
+        return result;
+    }
+
+    /**
+     * Appends the rewritten statements of node to out, for a start with
+     * the given pen and color (null if not known).
+     */
+    private void rewrite(ParseTree node, int pen, String color, List<ParseTree> out) {
+        String key = pen + " " + color;
+        Map<String, ParseTree[]> done = rewritten.computeIfAbsent(node, n -> new HashMap<>(2));
+        ParseTree[] statements = done.get(key);
+        if (statements == null) {
+            List<ParseTree> result = new ArrayList<>();
+            rewriteOnce(node, pen, color, result);
+            statements = result.toArray(new ParseTree[0]);
+            done.put(key, statements);
+        }
+        for (ParseTree statement : statements) {
+            out.add(statement);
+        }
+    }
+
+    private void rewriteOnce(ParseTree node, int pen, String color, List<ParseTree> out) {
+        if (node instanceof SequenceNode) {
+            List<ParseTree> statements = new ArrayList<>();
+            int nextPen = pen;
+            String nextColor = color;
+            for (ParseTree statement : ((SequenceNode) node).statements) {
+                rewrite(statement, nextPen, nextColor, statements);
+                nextPen = penAfter(statement, nextPen);
+                nextColor = colorAfter(statement, nextColor);
+            }
+            simplify(statements, pen, color, false);
+            out.addAll(statements);
+        } else if (node instanceof RepNode) {
+            RepNode loop = (RepNode) node;
+            if (loop.count <= 0) {
+                loopsDeleted++;
+            } else if (loop.count == 1) {
+                loopsUnwrapped++;
+                rewrite(loop.right, pen, color, out);
+            } else {
+                // the first pass starts like the loop, the others like each other
+                int nextPen = penAfter(loop.right, pen);
+                String nextColor = colorAfter(loop.right, color);
+                List<ParseTree> body = new ArrayList<>();
+                rewrite(loop.right, pen == nextPen ? pen : UNKNOWN,
+                        color != null && color.equals(nextColor) ? color : null, body);
+                if (body.isEmpty()) {
+                    loopsDeleted++;
+                } else {
+                    ParseTree right = body.size() == 1 ? body.get(0) : sequence(body);
+                    out.add(right == loop.right ? loop : node(new RepNode(right, loop.count)));
+                }
+            }
+        } else {
+            out.add(node);
+        }
+    }
+
+    /**
+     * Drops dead pen and color changes and folds turns and moves in a
+     * list of statements that start with the given pen and color, until
+     * nothing more changes. If last, nothing runs after the statements.
+     */
+    private void simplify(List<ParseTree> statements, int pen, String color, boolean last) {
+        boolean changed = true;
+        while (changed) {
+            changed = dropStateChanges(statements, pen, color, last);
+            changed |= fold(statements, pen);
+        }
+    }
+
+    /**
+     * Drops UP, DOWN and COLOR statements that change nothing or are
+     * overridden before they matter. Returns whether any were dropped.
+     */
+    private boolean dropStateChanges(List<ParseTree> statements, int pen, String color, boolean last) {
+        boolean changed = false;
+        for (int i = 0; i < statements.size(); i++) {
+            ParseTree statement = statements.get(i);
+            if (statement instanceof SingleNode) {
+                SingleNode single = (SingleNode) statement;
+                boolean dead;
+                if (single.node == TokenType.HEX) {
+                    String newColor = single.data.toUpperCase();
+                    dead = newColor.equals(color) || colorOverridden(statements, i + 1, pen, last);
+                    if (dead) {
+                        colorsDropped++;
+                    }
+                } else {
+                    int newPen = single.node == TokenType.UP ? 1 : 0;
+                    dead = newPen == pen || penOverridden(statements, i + 1, last);
+                    if (dead) {
+                        pensDropped++;
+                    }
+                }
+                if (dead) {
+                    statements.remove(i--);
+                    changed = true;
+                    continue;
+                }
+            }
+            pen = penAfter(statement, pen);
+            color = colorAfter(statement, color);
+        }
+        return changed;
+    }
+
+    /**
+     * Whether the pen is set again from position i on before any move.
+     */
+    private static boolean penOverridden(List<ParseTree> statements, int i, boolean last) {
+        for (; i < statements.size(); i++) {
+            ParseTree statement = statements.get(i);
+            if (statement instanceof SingleNode) {
+                if (((SingleNode) statement).node != TokenType.HEX) {
+                    return true;
+                }
+            } else if (!isTurn(statement)) {
+                return false;  // a move, or a loop that may hold one
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Whether the color is set again from position i on, which starts with
+     * the given pen, before anything could be drawn.
+     */
+    private boolean colorOverridden(List<ParseTree> statements, int i, int pen, boolean last) {
+        for (; i < statements.size(); i++) {
+            ParseTree statement = statements.get(i);
+            if (statement instanceof SingleNode && ((SingleNode) statement).node == TokenType.HEX) {
+                return true;
+            }
+            if (pen == UNKNOWN || statement.effect().draws(pen == 1)) {
+                return false;
+            }
+            if (lastColor(statement) != null) {
+                return true;  // a loop that sets the color without drawing
+            }
+            pen = penAfter(statement, pen);
+        }
+        return last;
+    }
+
+    /**
+     * Folds runs of turns, and runs of moves with the pen up if allowed.
+     * Returns whether anything was folded.
+     */
+    private boolean fold(List<ParseTree> statements, int pen) {
+        boolean changed = false;
+        for (int i = 0; i < statements.size(); i++) {
+            ParseTree statement = statements.get(i);
+            if (isTurn(statement)) {
+                int turn = turn(statement);
+                int j = i + 1;
+                while (j < statements.size() && isTurn(statements.get(j))) {
+                    turn += turn(statements.get(j++));
+                }
+                turn = Math.floorMod(turn, 360);
+                if (j > i + 1 || turn == 0) {
+                    turnsFolded += j - i - (turn == 0 ? 0 : 1);
+                    statements.subList(i, j).clear();
+                    if (turn != 0) {
+                        statements.add(i, node(new MoveNode(TokenType.LEFT, turn)));
+                    } else {
+                        i--;
+                    }
+                    changed = true;
+                    continue;
+                }
+            } else if (foldMoves && pen == 1 && isMove(statement)) {
+                long steps = steps(statement);
+                int j = i + 1;
+                while (j < statements.size() && isMove(statements.get(j))) {
+                    steps += steps(statements.get(j++));
+                }
+                if ((j > i + 1 || steps == 0) && steps == (int) steps) {
+                    movesFolded += j - i - (steps == 0 ? 0 : 1);
+                    statements.subList(i, j).clear();
+                    if (steps != 0) {
+                        statements.add(i, node(steps > 0
+                            ? new MoveNode(TokenType.FORW, (int) steps)
+                            : new MoveNode(TokenType.BACK, (int) -steps)));
+                    } else {
+                        i--;
+                    }
+                    changed = true;
+                    continue;
+                }
+            }
+            pen = penAfter(statement, pen);
+        }
+        return changed;
+    }
+
+    private static boolean isTurn(ParseTree node) {
+        return node instanceof MoveNode
+            && (((MoveNode) node).operator == TokenType.LEFT || ((MoveNode) node).operator == TokenType.RIGHT);
+    }
+
+    private static boolean isMove(ParseTree node) {
+        return node instanceof MoveNode
+            && (((MoveNode) node).operator == TokenType.FORW || ((MoveNode) node).operator == TokenType.BACK);
+    }
+
+    /**
+     * The turn of a LEFT or RIGHT in degrees to the left, below 360.
+     */
+    private static int turn(ParseTree node) {
+        MoveNode move = (MoveNode) node;
+        return move.operator == TokenType.LEFT ? move.num % 360 : -(move.num % 360);
+    }
+
+    private static long steps(ParseTree node) {
+        MoveNode move = (MoveNode) node;
+        return move.operator == TokenType.FORW ? move.num : -(long) move.num;
+    }
+
+    private static int penAfter(ParseTree node, int pen) {
+        int after = node.effect().pen;
+        return after == Effect.KEEP ? pen : after;
+    }
+
+    private String colorAfter(ParseTree node, String color) {
+        String last = lastColor(node);
+        return last != null ? last : color;
+    }
+
+    /**
+     * The color the node leaves Leona with if it sets one, or null. There
+     * are no conditionals, so that is the last color it sets when run.
+     */
+    private String lastColor(ParseTree node) {
+        Object known = colors.get(node);
+        if (known == null) {
+            String last = null;
+            if (node instanceof SingleNode && ((SingleNode) node).node == TokenType.HEX) {
+                last = ((SingleNode) node).data.toUpperCase();
+            } else if (node instanceof RepNode && ((RepNode) node).count > 0) {
+                last = lastColor(((RepNode) node).right);
+            } else if (node instanceof SequenceNode) {
+                ParseTree[] statements = ((SequenceNode) node).statements;
+                for (int i = statements.length - 1; i >= 0 && last == null; i--) {
+                    last = lastColor(statements[i]);
+                }
+            }
+            known = last != null ? last : NO_COLOR;
+            colors.put(node, known);
+        }
+        return known == NO_COLOR ? null : (String) known;
+    }
+
+    /**
+     * Whether every turn in the tree is a multiple of 90 degrees.
+     */
+    private static boolean onAxes(ParseTree node, Map<ParseTree, Boolean> seen) {
+        Boolean known = seen.get(node);
+        if (known == null) {
+            if (node instanceof MoveNode) {
+                known = !isTurn(node) || ((MoveNode) node).num % 90 == 0;
+            } else if (node instanceof RepNode) {
+                known = onAxes(((RepNode) node).right, seen);
+            } else if (node instanceof SequenceNode) {
+                known = true;
+                for (ParseTree statement : ((SequenceNode) node).statements) {
+                    known &= onAxes(statement, seen);
+                }
+            } else {
+                known = true;
+            }
+            seen.put(node, known);
+        }
+        return known;
+    }
+
+    /**
+     * The total number of steps of all moves the tree runs.
+     */
+    private static double length(ParseTree node, Map<ParseTree, Double> seen) {
+        Double known = seen.get(node);
+        if (known == null) {
+            if (node instanceof MoveNode) {
+                known = isMove(node) ? Math.abs((double) ((MoveNode) node).num) : 0.0;
+            } else if (node instanceof RepNode) {
+                known = Math.max(((RepNode) node).count, 0) * length(((RepNode) node).right, seen);
+            } else if (node instanceof SequenceNode) {
+                known = 0.0;
+                for (ParseTree statement : ((SequenceNode) node).statements) {
+                    known += length(statement, seen);
+                }
+            } else {
+                known = 0.0;
+            }
+            seen.put(node, known);
+        }
+        return known;
+    }
+
+    /**
+     * The number of statements in the tree as written, counting a shared
+     * subtree everywhere it occurs.
+     */
+    private long size(ParseTree node) {
+        Long known = sizes.get(node);
+        if (known == null) {
+            if (node instanceof RepNode) {
+                known = 1 + size(((RepNode) node).right);
+            } else if (node instanceof SequenceNode) {
+                known = 0L;
+                for (ParseTree statement : ((SequenceNode) node).statements) {
+                    known += size(statement);
+                }
+            } else {
+                known = 1L;
+            }
+            sizes.put(node, known);
+        }
+        return known;
+    }
+
+    private ParseTree sequence(List<ParseTree> statements) {
+        return node(new SequenceNode(statements.toArray(new ParseTree[0])));
+    }
+
+    private ParseTree node(ParseTree node) {
+        return nodes != null ? nodes.intern(node) : node;
+    }
+
+    /**
+     * Returns a one-line report of what was removed, for standard error.
+     */
+    public String toString() {
+        return "optimize: " + before + " statements in, " + after + " out (" + (before - after)
+                + " removed; rewrites: " + turnsFolded + " turns folded, " + movesFolded + " moves folded, "
+                + pensDropped + " pen changes and " + colorsDropped + " color changes dropped, "
+                + loopsUnwrapped + " loops unwrapped, " + loopsDeleted + " loops deleted)";
+    }
+}
@@ -1,10 +1,71 @@
+import java.util.Objects;
+
 /**
  * Abstract base class for all parse tree nodes.
  * Every node must implement an evaluate() method that applies
- * its logic using a Leona instance.
+ * its logic using a Leona instance, and a compile() method that
+ * emits the equivalent Program instructions.
+ *
+ * The parser shares identical subtrees (see NodeTable), so a tree can be
+ * a DAG, and a node must not be changed once it has been built. What is
+ * worked out about a node (effect, cost, extent) is kept in the node, so
+ * it is only worked out once however often the node occurs.
  */
 abstract class ParseTree {
+    private Effect effect;  // computed on first use
+    private Cost cost;      // computed on first use
+    private Extent extent;  // computed on first use
+
     abstract public void evaluate(Leona leona);
+
+    abstract public void compile(ProgramBuilder builder);
+
+    /**
+     * Returns the net effect of evaluating this node once.
+     */
+    public Effect effect() {
+        if (effect == null) {
+            effect = computeEffect();
+        }
+        return effect;
+    }
+
+    abstract protected Effect computeEffect();
+
+    /**
+     * Returns the cost of evaluating this node once.
+     */
+    public Cost cost() {
+        if (cost == null) {
+            cost = computeCost();
+        }
+        return cost;
+    }
+
+    abstract protected Cost computeCost();
+
+    /**
+     * Returns where evaluating this node once takes Leona.
+     */
+    public Extent extent() {
+        if (extent == null) {
+            extent = computeExtent();
+        }
+        return extent;
+    }
+
+    abstract protected Extent computeExtent();
+
+    /**
+     * A hash of the node's own fields and the identities of its children.
+     */
+    abstract int shallowHash();
+
+    /**
+     * Whether other is a node of the same kind with the same fields and
+     * the very same children.
+     */
+    abstract boolean sameAs(ParseTree other);
 }
 
 /**
@@ -14,10 +75,10 @@ abstract class ParseTree {
  * - num: the number of steps/degrees to apply
  */
 class MoveNode extends ParseTree {
-    public Token operator;
-    public Token num;
+    public TokenType operator;
+    public int num;
 
-    public MoveNode(Token action, Token value) {
+    public MoveNode(TokenType action, int value) {
         this.operator = action;
         this.num = value;
     }
@@ -26,82 +87,232 @@ class MoveNode extends ParseTree {
      * Evaluates the movement by modifying the Leona object's state accordingly.
      */
     public void evaluate(Leona leona) {
-        if (operator.getType() == TokenType.FORW) {
-            leona.move(num.getData());
-        } else if (operator.getType() == TokenType.BACK) {
-            leona.move(-num.getData());
-        } else if (operator.getType() == TokenType.LEFT) {
-            leona.turnLeft(num.getData());
-        } else if (operator.getType() == TokenType.RIGHT) {
-            leona.turnRight(num.getData());
+        if (operator == TokenType.FORW) {
+            leona.move(num);
+        } else if (operator == TokenType.BACK) {
+            leona.move(-num);
+        } else if (operator == TokenType.LEFT) {
+            leona.turnLeft(num);
+        } else if (operator == TokenType.RIGHT) {
+            leona.turnRight(num);
         }
     }
+
+    /**
+     * Emits a MOVE or TURN instruction. BACK and RIGHT become negative operands.
+     */
+    public void compile(ProgramBuilder builder) {
+        if (operator == TokenType.FORW) {
+            builder.emit(Program.MOVE, num);
+        } else if (operator == TokenType.BACK) {
+            builder.emit(Program.MOVE, -num);
+        } else if (operator == TokenType.LEFT) {
+            builder.emit(Program.TURN, num);
+        } else if (operator == TokenType.RIGHT) {
+            builder.emit(Program.TURN, -num);
+        }
+    }
+
+    protected Effect computeEffect() {
+        if (operator == TokenType.LEFT) {
+            return new Effect(num % 360, Effect.KEEP, false, false);
+        } else if (operator == TokenType.RIGHT) {
+            return new Effect(-(num % 360), Effect.KEEP, false, false);
+        }
+        return new Effect(0, Effect.KEEP, false, true);  // FORW and BACK draw when the pen is down
+    }
+
+    protected Cost computeCost() {
+        if (operator == TokenType.LEFT || operator == TokenType.RIGHT) {
+            return new Cost(1, 0, 0, Effect.KEEP);
+        }
+        return new Cost(1, 0, 1, Effect.KEEP);
+    }
+
+    protected Extent computeExtent() {
+        if (operator == TokenType.LEFT) {
+            return Extent.turn(num);
+        } else if (operator == TokenType.RIGHT) {
+            return Extent.turn(-num);
+        }
+        return Extent.move(operator == TokenType.BACK ? -num : num);
+    }
+
+    int shallowHash() {
+        return 31 * operator.ordinal() + num;
+    }
+
+    boolean sameAs(ParseTree other) {
+        return other instanceof MoveNode
+            && ((MoveNode) other).operator == operator && ((MoveNode) other).num == num;
+    }
 }
 
 /**
- * Represents a general-purpose node with left and right subtrees.
- * Used for sequencing multiple statements or expressions.
+ * Represents a sequence of statements, such as a whole program or the
+ * body of a quoted REP loop. The statements are kept in source order
+ * and evaluated one after another in a loop, so long programs do not
+ * need a deep call stack.
  */
-class RegularNode extends ParseTree {
-    public ParseTree left;
-    public ParseTree right;
+class SequenceNode extends ParseTree {
+    public ParseTree[] statements;
 
-    public RegularNode(ParseTree left, ParseTree right) {
-        this.left = left;
-        this.right = right;
+    public SequenceNode(ParseTree[] statements) {
+        this.statements = statements;
     }
 
     /**
-     * Evaluates both subtrees. Order is: right first, then left.
-     * If both are null, the program exits.
+     * Evaluates each statement in order.
      */
     public void evaluate(Leona leona) {
-        if (left == null && right == null) {
-            System.exit(1);  // invalid node
-        } else {
-            if (right != null) right.evaluate(leona);
-            if (left != null) left.evaluate(leona);
+        for (ParseTree statement : statements) {
+            statement.evaluate(leona);
+        }
+    }
+
+    public void compile(ProgramBuilder builder) {
+        for (ParseTree statement : statements) {
+            statement.compile(builder);
         }
     }
+
+    protected Effect computeEffect() {
+        Effect result = Effect.NONE;
+        for (ParseTree statement : statements) {
+            result = result.then(statement.effect());
+        }
+        return result;
+    }
+
+    protected Cost computeCost() {
+        Cost result = Cost.NONE;
+        for (ParseTree statement : statements) {
+            result = result.then(statement.cost());
+        }
+        return result;
+    }
+
+    protected Extent computeExtent() {
+        Extent result = Extent.NONE;
+        for (ParseTree statement : statements) {
+            result = result.then(statement.extent());
+        }
+        return result;
+    }
+
+    int shallowHash() {
+        int hash = 1;
+        for (ParseTree statement : statements) {
+            hash = 31 * hash + System.identityHashCode(statement);
+        }
+        return hash;
+    }
+
+    boolean sameAs(ParseTree other) {
+        if (!(other instanceof SequenceNode)) {
+            return false;
+        }
+        ParseTree[] those = ((SequenceNode) other).statements;
+        if (those.length != statements.length) {
+            return false;
+        }
+        for (int i = 0; i < statements.length; i++) {
+            if (those[i] != statements[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
 
 /**
  * Represents a loop construct (REP).
- * The left token holds the number of repetitions,
+ * count holds the number of repetitions,
  * and the right subtree contains the body to repeat.
  */
 class RepNode extends ParseTree {
     public ParseTree right;
-    public Token left;
+    public int count;
 
-    public RepNode(ParseTree right, Token left) {
-        this.left = left;
+    public RepNode(ParseTree right, int count) {
+        this.count = count;
         this.right = right;
     }
 
     /**
-     * Evaluates the right subtree multiple times based on the left token's value.
+     * Evaluates the right subtree count times.
      */
     public void evaluate(Leona leona) {
-        for (int i = 0; i < left.getData(); i++) {
+        if (leona.metrics != null) {
+            leona.metrics.statements++;
+        }
+        for (int i = 0; i < count; i++) {
             right.evaluate(leona);
         }
     }
+
+    /**
+     * Emits the body between LOOP_BEGIN and LOOP_END, then fills in the
+     * jump target that lets LOOP_BEGIN skip an empty loop.
+     */
+    public void compile(ProgramBuilder builder) {
+        Effect loop = effect();
+        int begin;
+
+        if (count > 1 && (!loop.drawsIfUp || !loop.drawsIfDown)) {
+            // the loop draws nothing for at least one starting pen state,
+            // so the interpreter may be able to skip most of its iterations
+            int flags = (loop.drawsIfUp ? 0 : Program.NO_DRAW_UP)
+                      | (loop.drawsIfDown ? 0 : Program.NO_DRAW_DOWN);
+            begin = builder.emit(Program.LOOP_SUMMARY, count, 0, right.effect().rotation, flags);
+        } else {
+            begin = builder.emit(Program.LOOP_BEGIN, count, 0);
+        }
+        builder.extent(begin, this, right);
+
+        builder.enterLoop();
+        int body = builder.position();
+        right.compile(builder);
+        builder.emit(Program.LOOP_END, body);
+        builder.exitLoop();
+        builder.patch(begin + 2, builder.position());
+    }
+
+    protected Effect computeEffect() {
+        return right.effect().repeat(count);
+    }
+
+    protected Cost computeCost() {
+        return right.cost().repeat(count);
+    }
+
+    protected Extent computeExtent() {
+        return right.extent().repeat(count);
+    }
+
+    int shallowHash() {
+        return 31 * System.identityHashCode(right) + count;
+    }
+
+    boolean sameAs(ParseTree other) {
+        return other instanceof RepNode
+            && ((RepNode) other).right == right && ((RepNode) other).count == count;
+    }
 }
 
 /**
- * Represents a single command, such as UP, DOWN, COLOR, or EOF.
+ * Represents a single command, such as UP, DOWN, or COLOR.
  * Optionally stores a color string in `data` for color-related commands.
  */
 class SingleNode extends ParseTree {
-    public Token node;
+    public TokenType node;
     public String data;  // optional data (e.g. color hex)
 
-    public SingleNode(Token node) {
+    public SingleNode(TokenType node) {
         this.node = node;
     }
 
-    public SingleNode(Token node, String data) {
+    public SingleNode(TokenType node, String data) {
         this.node = node;
         this.data = data;
     }
@@ -110,17 +321,53 @@ class SingleNode extends ParseTree {
      * Evaluates a simple command. Applies pen state or color changes.
      */
     public void evaluate(Leona leona) {
-        if (node.getType() == TokenType.EOF) {
-            System.out.print("");
-        }
-        if (node.getType() == TokenType.UP) {
+        if (node == TokenType.UP) {
             leona.up();
         }
-        if (node.getType() == TokenType.DOWN) {
+        if (node == TokenType.DOWN) {
             leona.down();
         }
-        if (node.getType() == TokenType.HEX) {
+        if (node == TokenType.HEX) {
             leona.changeColor(data.toUpperCase());
         }
     }
+
+    public void compile(ProgramBuilder builder) {
+        if (node == TokenType.UP) {
+            builder.emit(Program.PEN, 1);
+        }
+        if (node == TokenType.DOWN) {
+            builder.emit(Program.PEN, 0);
+        }
+        if (node == TokenType.HEX) {
+            builder.emit(Program.COLOR, builder.color(data.toUpperCase()));
+        }
+    }
+
+    protected Effect computeEffect() {
+        if (node == TokenType.UP) {
+            return new Effect(0, 1, false, false);
+        }
+        if (node == TokenType.DOWN) {
+            return new Effect(0, 0, false, false);
+        }
+        return Effect.NONE;
+    }
+
+    protected Cost computeCost() {
+        return new Cost(1, 0, 0, node == TokenType.UP ? 1 : node == TokenType.DOWN ? 0 : Effect.KEEP);
+    }
+
+    protected Extent computeExtent() {
+        return Extent.NONE;
+    }
+
+    int shallowHash() {
+        return 31 * node.ordinal() + Objects.hashCode(data);
+    }
+
+    boolean sameAs(ParseTree other) {
+        return other instanceof SingleNode
+            && ((SingleNode) other).node == node && Objects.equals(((SingleNode) other).data, data);
+    }
 }
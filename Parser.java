@@ -1,12 +1,44 @@
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * The Parser class implements a recursive descent parser for a small
  * custom programming language (as defined by the grammar in Main.java).
  * It processes a stream of tokens produced by the Lexer and builds a
  * parse tree that represents the structure of the program.
+ *
+ * By default parsing stops at the first syntax error. With recover set,
+ * the parser instead records each error as a Diagnostic and skips ahead
+ * (panic mode) to a point where parsing can go on: just past the next
+ * PERIOD, or to the QUOTE that closes the loop body it is in. The first
+ * diagnostic is always the error that parse() would have thrown.
+ *
+ * Every node built is passed through a NodeTable, so identical subtrees
+ * (a block repeated all over a generated program, say) are built once and
+ * shared. Set nodes to null to build a plain tree instead.
  */
 public class Parser {
+    // Token types that can start a statement
+    private static final Set<TokenType> STATEMENT = EnumSet.of(
+        TokenType.REP, TokenType.UP, TokenType.DOWN, TokenType.COLOR,
+        TokenType.FORW, TokenType.BACK, TokenType.LEFT, TokenType.RIGHT);
+
     public Lexer lexer;  // the token stream source
 
+    public boolean recover;  // record syntax errors and go on instead of throwing
+    public boolean build = true;  // whether to build the parse tree at all
+    public List<Diagnostic> diagnostics = new ArrayList<>();  // errors recorded when recovering
+    public Metrics metrics;  // where to count tree nodes and loop nesting, if anywhere
+    public NodeTable nodes = new NodeTable();  // shares identical subtrees, if set
+
+    private long consumed;        // tokens consumed so far (counted only when recovering)
+    private long lastError = -1;  // value of consumed at the last recorded error
+    private TokenType previous;   // the last two tokens consumed (when recovering)
+    private TokenType beforePrevious;
+    private int depth;            // REP statements currently open (counted only with metrics)
+
     public Parser(Lexer lexer) {
         this.lexer = lexer;
     }
@@ -14,42 +46,88 @@ public class Parser {
     /**
      * Entry point for parsing.
      * Starts by parsing an <EXPR> and verifies that all tokens have been consumed.
+     * When recovering, a stray closing quote at the top level is recorded
+     * and skipped, and parsing goes on after it.
      */
     public ParseTree parse() throws SyntaxError {
         ParseTree result = Expr();
-        if (lexer.peekToken().getType() != TokenType.EOF) {
-            throw new SyntaxError(lexer.peekToken());
+        while (lexer.peekType() != TokenType.EOF) {
+            SyntaxError error = new SyntaxError(lexer.peekToken(), expected(STATEMENT, TokenType.EOF));
+            if (!recover) {
+                throw error;
+            }
+            record(error);
+            advance();  // the stray quote
+
+            ParseTree rest = Expr();
+            if (build) {
+                result = node(new SequenceNode(new ParseTree[] { result, rest }));
+            }
         }
         return result;
     }
 
+    /**
+     * Checks the whole input for syntax errors without building a parse
+     * tree, and returns all of them (an empty list if there are none).
+     */
+    public List<Diagnostic> validate() {
+        recover = true;
+        build = false;
+        try {
+            parse();
+        } catch (SyntaxError e) {
+            throw new IllegalStateException(e);  // never thrown while recovering
+        }
+        return diagnostics;
+    }
+
+    /**
+     * Parses the next top-level statement, so a program can be run while
+     * the rest of it is still being read. Returns null at the end of input.
+     * Calling this until it returns null accepts exactly the programs that
+     * parse() accepts, and reports errors at the same rows.
+     */
+    public ParseTree nextStatement() throws SyntaxError {
+        if (lexer.peekType() == TokenType.EOF) {
+            return null;
+        }
+        return Stmt();  // a stray closing quote is an error here, as in parse()
+    }
+
     /**
      * Parses the <EXPR> non-terminal.
      * <EXPR> ::= <STMT> <EXPR> | <STMT> e
+     *
+     * The statements are collected in a loop rather than by recursion,
+     * so the length of a program is not limited by the stack size.
      */
     public ParseTree Expr() throws SyntaxError {
-        ParseTree result;
-        ParseTree left;
+        List<ParseTree> statements = new ArrayList<>();
 
         // base case: end of input
-        if (lexer.peekToken().getType() == TokenType.EOF) {
-            return new SingleNode(lexer.peekToken());
+        if (lexer.peekType() == TokenType.EOF) {
+            return build ? node(new SequenceNode(new ParseTree[0])) : null;
         }
 
-        // parse a statement
-        ParseTree right = Stmt();
-
-        // check what follows to decide between single or compound expression
-        if (lexer.peekToken().getType() == TokenType.EOF) {
-            result = new RegularNode(new SingleNode(lexer.peekToken()), right);
-        } else if (lexer.peekToken().getType() == TokenType.QUOTE) {
-            result = new RegularNode(null, right);
-        } else {
-            left = Expr();  // recurse on the left-hand expression
-            result = new RegularNode(left, right);
-        }
+        // parse statements until the end of input or of the enclosing loop
+        do {
+            try {
+                ParseTree statement = Stmt();
+                if (build) {
+                    statements.add(statement);
+                }
+            } catch (SyntaxError e) {
+                if (!recover) {
+                    throw e;
+                }
+                record(e);
+                synchronize();
+            }
+        } while (lexer.peekType() != TokenType.EOF &&
+                 lexer.peekType() != TokenType.QUOTE);
 
-        return result;
+        return build ? node(new SequenceNode(statements.toArray(new ParseTree[0]))) : null;
     }
 
     /**
@@ -57,38 +135,57 @@ public class Parser {
      * Handles REP loops, pen control (UP/DOWN), color setting, and movement.
      */
     public ParseTree Stmt() throws SyntaxError {
-        ParseTree result;
-        Token next = lexer.peekToken();
+        ParseTree result = null;
+        TokenType next = lexer.peekType();
 
-        if (next.getType() == TokenType.REP) {
-            lexer.nextToken();  // consume REP
-            Token left = lexer.nextToken();  // should be a number
-            ParseTree right = Loop();  // parse the loop body
-            result = new RepNode(right, left);
+        if (next == TokenType.REP) {
+            advance();  // consume REP
+            int count = lexer.peekData();  // should be a number
+            advance();
+            if (metrics != null) {
+                metrics.maxRepDepth = Math.max(metrics.maxRepDepth, ++depth);
+            }
+            ParseTree right;
+            try {
+                right = Loop();  // parse the loop body
+            } finally {
+                if (metrics != null) {
+                    depth--;
+                }
+            }
+            if (build) {
+                result = node(new RepNode(right, count));
+            }
 
-        } else if (next.getType() == TokenType.UP || next.getType() == TokenType.DOWN) {
+        } else if (next == TokenType.UP || next == TokenType.DOWN) {
             // UP or DOWN statements
-            Token command = lexer.nextToken();
-            result = new SingleNode(command);
+            int row = lexer.peekRow();
+            advance();
+            if (build) {
+                result = node(new SingleNode(next));
+            }
 
-            if (lexer.peekToken().getType() != TokenType.PERIOD) {
-                throw new SyntaxError(command);
+            if (lexer.peekType() != TokenType.PERIOD) {
+                // reported at the command itself
+                throw new SyntaxError(new Token(lexer.peekType(), row), expected(TokenType.PERIOD));
             }
-            lexer.nextToken();  // consume PERIOD
+            advance();  // consume PERIOD
 
-        } else if (next.getType() == TokenType.COLOR) {
+        } else if (next == TokenType.COLOR) {
             // COLOR command followed by HEX value and PERIOD
-            lexer.nextToken();  // consume COLOR
-            if (lexer.peekToken().getType() == TokenType.HEX) {
-                result = new SingleNode(lexer.peekToken(), lexer.peekToken().getColor());
-                lexer.nextToken();  // consume HEX
+            advance();  // consume COLOR
+            if (lexer.peekType() == TokenType.HEX) {
+                if (build) {
+                    result = node(new SingleNode(TokenType.HEX, lexer.peekColor()));
+                }
+                advance();  // consume HEX
 
-                if (lexer.peekToken().getType() != TokenType.PERIOD) {
-                    throw new SyntaxError(lexer.peekToken());
+                if (lexer.peekType() != TokenType.PERIOD) {
+                    throw new SyntaxError(lexer.peekToken(), expected(TokenType.PERIOD));
                 }
-                lexer.nextToken();  // consume PERIOD
+                advance();  // consume PERIOD
             } else {
-                throw new SyntaxError(lexer.peekToken());
+                throw new SyntaxError(lexer.peekToken(), expected(TokenType.HEX));
             }
 
         } else {
@@ -106,14 +203,14 @@ public class Parser {
     public ParseTree Loop() throws SyntaxError {
         ParseTree result;
 
-        if (lexer.peekToken().getType() == TokenType.QUOTE) {
-            lexer.nextToken();  // consume opening quote
+        if (lexer.peekType() == TokenType.QUOTE) {
+            advance();  // consume opening quote
             result = Expr();    // parse the inner expression
 
-            if (lexer.peekToken().getType() != TokenType.QUOTE) {
-                throw new SyntaxError(lexer.peekToken());
+            if (lexer.peekType() != TokenType.QUOTE) {
+                throw new SyntaxError(lexer.peekToken(), expected(STATEMENT, TokenType.QUOTE));
             }
-            lexer.nextToken();  // consume closing quote
+            advance();  // consume closing quote
         } else {
             result = Stmt();  // single statement loop
         }
@@ -126,34 +223,119 @@ public class Parser {
      * <MOVE> ::= FORW | BACK | LEFT | RIGHT followed by a number and period
      */
     public ParseTree Move() throws SyntaxError {
-        Token action;
-        Token value;
+        TokenType action;
+        int value;
         ParseTree result;
 
         // check for one of the movement commands
-        if (lexer.peekToken().getType() == TokenType.FORW ||
-            lexer.peekToken().getType() == TokenType.BACK ||
-            lexer.peekToken().getType() == TokenType.LEFT ||
-            lexer.peekToken().getType() == TokenType.RIGHT) {
+        if (lexer.peekType() == TokenType.FORW ||
+            lexer.peekType() == TokenType.BACK ||
+            lexer.peekType() == TokenType.LEFT ||
+            lexer.peekType() == TokenType.RIGHT) {
 
-            action = lexer.nextToken();  // consume movement keyword
+            action = lexer.peekType();
+            advance();  // consume movement keyword
 
-            if (lexer.peekToken().getType() == TokenType.DECIMAL) {
-                value = lexer.nextToken();  // consume numeric value
+            if (lexer.peekType() == TokenType.DECIMAL) {
+                value = lexer.peekData();
+                advance();  // consume numeric value
             } else {
-                throw new SyntaxError(lexer.peekToken());
+                throw new SyntaxError(lexer.peekToken(), expected(TokenType.DECIMAL));
             }
 
-            if (lexer.peekToken().getType() != TokenType.PERIOD) {
-                throw new SyntaxError(lexer.peekToken());
+            if (lexer.peekType() != TokenType.PERIOD) {
+                throw new SyntaxError(lexer.peekToken(), expected(TokenType.PERIOD));
             }
 
-            lexer.nextToken();  // consume PERIOD
-            result = new MoveNode(action, value);
+            advance();  // consume PERIOD
+            result = build ? node(new MoveNode(action, value)) : null;
             return result;
 
         } else {
-            throw new SyntaxError(lexer.peekToken());
+            throw new SyntaxError(lexer.peekToken(), EnumSet.copyOf(STATEMENT));
+        }
+    }
+
+    /**
+     * Counts a newly built node, and returns the shared node that is the
+     * same as it, if there is one.
+     */
+    private ParseTree node(ParseTree node) {
+        if (nodes != null) {
+            ParseTree shared = nodes.intern(node);
+            if (metrics != null && shared != node) {
+                metrics.sharedNodes++;
+            }
+            node = shared;
+        }
+        if (metrics != null) {
+            metrics.nodes++;
         }
+        return node;
+    }
+
+    /**
+     * Consumes the current token, keeping track of what was consumed
+     * when recovering.
+     */
+    private void advance() {
+        if (recover) {
+            beforePrevious = previous;
+            previous = lexer.peekType();
+            consumed++;
+        }
+        lexer.advance();
+    }
+
+    /**
+     * Records an error, unless it is at the same token as the previous
+     * one (which happens when a stray quote ends a loop body early and
+     * is then seen again by the enclosing level).
+     */
+    private void record(SyntaxError error) {
+        if (consumed != lastError) {
+            diagnostics.add(new Diagnostic(error));
+            lastError = consumed;
+        }
+    }
+
+    /**
+     * Skips tokens after an error until parsing can go on: past the next
+     * PERIOD, up to the QUOTE that closes the current loop body (which is
+     * left for the loop to consume), or to the end of input. Loop bodies
+     * opened on the way (a QUOTE right after REP and its count) are
+     * skipped whole, up to their own closing QUOTE.
+     */
+    private void synchronize() {
+        int depth = 0;  // loop bodies opened while skipping
+        while (true) {
+            TokenType type = lexer.peekType();
+            if (type == TokenType.EOF) {
+                return;
+            }
+            if (type == TokenType.QUOTE) {
+                if (previous == TokenType.DECIMAL && beforePrevious == TokenType.REP) {
+                    depth++;
+                } else if (depth > 0) {
+                    depth--;
+                } else {
+                    return;
+                }
+            } else if (type == TokenType.PERIOD && depth == 0) {
+                advance();
+                return;
+            }
+            advance();
+        }
+    }
+
+    private static Set<TokenType> expected(TokenType type) {
+        return EnumSet.of(type);
+    }
+
+    private static Set<TokenType> expected(Set<TokenType> types, TokenType type) {
+        Set<TokenType> result = EnumSet.copyOf(types);
+        result.add(type);
+        return result;
     }
 }
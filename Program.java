@@ -0,0 +1,742 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * A parse tree compiled into a flat array of instructions.
+ * Each instruction is an opcode followed by its operands, stored inline
+ * in the same int array. Colors are kept in a constant pool and referred
+ * to by index. Running a Program has the same effect on Leona as
+ * evaluating the tree it was compiled from, but without the virtual calls
+ * and token lookups of the tree walk.
+ *
+ * LOOP_SUMMARY is a LOOP_BEGIN that also records the net rotation of one
+ * pass through the body and the pen states for which the whole loop draws
+ * nothing. When entered in such a state, the loop only moves and turns
+ * Leona, so instead of running all iterations the interpreter runs just
+ * enough of them to find out where Leona ends up. Because the sum is no
+ * longer taken one step at a time, the final position can differ from
+ * running every iteration in the last bits of the doubles.
+ */
+public class Program {
+    // Opcodes and their operands
+    public static final int MOVE = 0;        // MOVE steps (negative for BACK)
+    public static final int TURN = 1;        // TURN degrees (positive = left, negative = right)
+    public static final int PEN = 2;         // PEN up (1 = up, 0 = down)
+    public static final int COLOR = 3;       // COLOR index into the color pool
+    public static final int LOOP_BEGIN = 4;  // LOOP_BEGIN count end (end = pc after the loop)
+    public static final int LOOP_END = 5;    // LOOP_END body (body = pc of the first body instruction)
+    public static final int LOOP_SUMMARY = 6; // LOOP_SUMMARY count end rotation flags
+
+    // Flags of LOOP_SUMMARY: the loop draws nothing when entered with the pen ...
+    public static final int NO_DRAW_UP = 1;    // ... up
+    public static final int NO_DRAW_DOWN = 2;  // ... down
+
+    // Loops with fewer iterations than this are not worth running in parallel
+    public static final int PARALLEL_MINIMUM = 64;
+
+    // Header of the form written by write; FORMAT must change whenever
+    // the instruction set or the way trees are compiled changes
+    public static final int MAGIC = 0x4C505247;  // "LPRG"
+    public static final int FORMAT = 1;
+
+    public final int[] code;       // instructions with inline operands
+    public final String[] colors;  // color constant pool
+    public final int maxDepth;     // deepest loop nesting, i.e. loop counters needed
+    private double[] reach;        // by pc of each loop: how far one pass of its body can move
+    private boolean[] replayable;  // by pc of each loop: whether a pass can be replayed from its moves
+
+    // By pc of each loop, if compiled with extents: where the whole loop,
+    // and one pass through its body, can take Leona (see Extent)
+    Extent[] loops, bodies;
+
+    public Program(int[] code, String[] colors, int maxDepth) {
+        this.code = code;
+        this.colors = colors;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Compiles a parse tree into a Program.
+     */
+    public static Program compile(ParseTree tree) {
+        return compile(tree, false);
+    }
+
+    /**
+     * Compiles a parse tree into a Program, also keeping the extents of
+     * its loops if asked to, so that with a viewport, passes through the
+     * loops that cannot reach it are found from the boxes around them
+     * rather than only from how far they move. Extents are not written
+     * out by write.
+     */
+    public static Program compile(ParseTree tree, boolean extents) {
+        ProgramBuilder builder = new ProgramBuilder();
+        builder.extents = extents;
+        tree.compile(builder);
+        return builder.build();
+    }
+
+    /**
+     * Runs the program using the drawing agent.
+     */
+    public void run(Leona leona) {
+        execute(leona, 0, code.length, new int[maxDepth], 0, null);
+    }
+
+    /**
+     * Runs the program using the drawing agent, producing the segments of
+     * large top-level loops on the given pool. The output is the same as
+     * from run(leona).
+     */
+    public void run(Leona leona, ForkJoinPool pool) {
+        execute(leona, 0, code.length, new int[maxDepth], 0, pool);
+    }
+
+    /**
+     * Runs the instructions from pc up to (not including) end. Loops that
+     * are opened keep their counters in counters, starting at depth.
+     * If a pool is given, loops at the outermost level that draw are run
+     * in parallel on it.
+     */
+    private void execute(Leona leona, int pc, int end, int[] counters, int depth, ForkJoinPool pool) {
+        int[] code = this.code;
+        Viewport viewport = leona.viewport;
+        if (viewport != null) {
+            pool = null;  // culling loops gives other rounding than running them in chunks
+        }
+        InstanceWriter instances = leona.instances;
+        if (instances != null) {
+            pool = null;  // the passes are written one after the other
+        }
+
+        while (pc < end) {
+            if (instances != null && (code[pc] == LOOP_BEGIN || code[pc] == LOOP_SUMMARY
+                    && (code[pc + 4] & (leona.up ? NO_DRAW_UP : NO_DRAW_DOWN)) == 0)
+                    && code[pc + 1] > 1 && replayable()[pc]) {
+                count(leona);
+                instance(leona, pc, counters, depth, instances);
+                pc = code[pc + 2];
+                continue;
+            }
+            if (viewport != null && (code[pc] == LOOP_BEGIN || code[pc] == LOOP_SUMMARY
+                    && (code[pc + 4] & (leona.up ? NO_DRAW_UP : NO_DRAW_DOWN)) == 0)
+                    && code[pc + 1] > 1) {
+                count(leona);
+                cull(leona, pc, counters, depth, viewport);
+                pc = code[pc + 2];
+                continue;
+            }
+            if (pool != null && depth == 0 && code[pc] == LOOP_BEGIN
+                    && code[pc + 1] >= PARALLEL_MINIMUM) {
+                count(leona);
+                parallel(leona, pc, pc + 3, pool);
+                pc = code[pc + 2];
+                continue;
+            }
+            if (pool != null && depth == 0 && code[pc] == LOOP_SUMMARY
+                    && code[pc + 1] >= PARALLEL_MINIMUM
+                    && (code[pc + 4] & (leona.up ? NO_DRAW_UP : NO_DRAW_DOWN)) == 0) {
+                count(leona);
+                parallel(leona, pc, pc + 5, pool);
+                pc = code[pc + 2];
+                continue;
+            }
+
+            switch (code[pc]) {
+                case MOVE:
+                    leona.move(code[pc + 1]);
+                    pc += 2;
+                    break;
+                case TURN:
+                    leona.turnLeft(code[pc + 1]);
+                    pc += 2;
+                    break;
+                case PEN:
+                    if (code[pc + 1] != 0) {
+                        leona.up();
+                    } else {
+                        leona.down();
+                    }
+                    pc += 2;
+                    break;
+                case COLOR:
+                    leona.changeColor(colors[code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case LOOP_BEGIN:
+                    count(leona);
+                    if (code[pc + 1] > 0) {
+                        counters[depth++] = code[pc + 1];
+                        pc += 3;
+                    } else {
+                        pc = code[pc + 2];  // zero iterations, skip the body
+                    }
+                    break;
+                case LOOP_SUMMARY:
+                    count(leona);
+                    if ((code[pc + 4] & (leona.up ? NO_DRAW_UP : NO_DRAW_DOWN)) != 0) {
+                        repeat(leona, pc, counters, depth);
+                        pc = code[pc + 2];
+                    } else if (code[pc + 1] > 0) {
+                        counters[depth++] = code[pc + 1];
+                        pc += 5;
+                    } else {
+                        pc = code[pc + 2];
+                    }
+                    break;
+                case LOOP_END:
+                    if (--counters[depth - 1] > 0) {
+                        pc = code[pc + 1];
+                    } else {
+                        depth--;
+                        pc += 2;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("bad opcode " + code[pc] + " at " + pc);
+            }
+        }
+    }
+
+    /**
+     * Counts an executed REP statement, if Leona keeps metrics. The other
+     * statements are counted by Leona itself.
+     */
+    private static void count(Leona leona) {
+        if (leona.metrics != null) {
+            leona.metrics.statements++;
+        }
+    }
+
+    /**
+     * Applies all iterations of the non-drawing loop at pc. If one pass
+     * leaves the heading unchanged, every pass moves Leona by the same
+     * offset, so one pass is run and the offset applied for the rest.
+     * Otherwise the heading comes back to where it started after a fixed
+     * number of passes (at most 360), and so does the position; only the
+     * passes left over after the last full cycle are run.
+     */
+    private void repeat(Leona leona, int pc, int[] counters, int depth) {
+        int count = code[pc + 1];
+        int rotation = code[pc + 3];
+        int body = pc + 5;
+        int bodyEnd = code[pc + 2] - 2;  // the LOOP_END that closes the body
+
+        if (count <= 0) {
+            return;
+        }
+
+        if (rotation == 0) {
+            double x = leona.x;
+            double y = leona.y;
+            execute(leona, body, bodyEnd, counters, depth, null);
+            leona.translate((leona.x - x) * (count - 1), (leona.y - y) * (count - 1));
+        } else {
+            int cycle = 360 / gcd(rotation, 360);
+            int passes = 1 + (count - 1) % cycle;  // at least one, for the pen and color changes
+            for (int i = 0; i < passes; i++) {
+                execute(leona, body, bodyEnd, counters, depth, null);
+            }
+        }
+    }
+
+    /**
+     * Runs the drawing loop at pc, skipping the passes through its body
+     * that cannot draw anything inside the viewport. Which those are
+     * follows from where each pass starts, and from the box around the
+     * path of a pass if the program has extents, or else from how far one
+     * pass can move (see reach).
+     *
+     * The first pass is always run, for its pen and color changes and to
+     * see how it turns and moves Leona. If it leaves the heading unchanged,
+     * every pass moves Leona by the same offset, so the passes start on a
+     * line; only the passes starting near enough to the viewport are run,
+     * and Leona is moved over the others as in repeat. Otherwise Leona
+     * comes back near where she started after every full cycle of headings,
+     * so no pass gets further away than the box around the whole loop, or
+     * than a cycle can move her; if that is still out of reach, the loop
+     * is finished as in repeat. As in repeat,
+     * the positions can then differ from running every pass in the last
+     * bits of the doubles.
+     */
+    private void cull(Leona leona, int pc, int[] counters, int depth, Viewport viewport) {
+        int count = code[pc + 1];
+        int body = pc + (code[pc] == LOOP_SUMMARY ? 5 : 3);
+        int bodyEnd = code[pc + 2] - 2;  // the LOOP_END that closes the body
+        double distance = reach()[pc];
+        double x = leona.x;
+        double y = leona.y;
+        int angle = leona.angle;
+
+        execute(leona, body, bodyEnd, counters, depth, null);
+        int rotation = Math.floorMod(leona.angle - angle, 360);
+
+        if (rotation != 0) {
+            int cycle = 360 / gcd(rotation, 360);
+            int passes = count - 1;
+            boolean reachable = loops != null
+                ? viewport.reachable(x, y, box(loops[pc], angle, x, y))
+                : viewport.reachable(x, y, distance * Math.min(count, cycle));
+            if (!reachable) {
+                passes %= cycle;
+            }
+            for (int i = 0; i < passes; i++) {
+                execute(leona, body, bodyEnd, counters, depth, null);
+            }
+            return;
+        }
+
+        double dx = leona.x - x;
+        double dy = leona.y - y;
+        long[] visible = bodies != null
+            ? viewport.reachable(x, y, dx, dy, box(bodies[pc], angle, x, y), 1, count - 1)
+            : viewport.reachable(x, y, dx, dy, distance, 1, count - 1);
+        if (visible == null) {
+            leona.translate(dx * (count - 1), dy * (count - 1));
+            return;
+        }
+        int before = (int) visible[0] - 1;       // passes skipped before the visible ones
+        int after = count - 1 - (int) visible[1]; // and after them
+        if (before > 0) {
+            leona.translate(dx * before, dy * before);
+        }
+        for (long i = visible[0]; i <= visible[1]; i++) {
+            execute(leona, body, bodyEnd, counters, depth, null);
+        }
+        if (after > 0) {
+            leona.translate(dx * after, dy * after);
+        }
+    }
+
+    /**
+     * Runs the drawing loop at pc, writing it to the InstanceWriter as
+     * instances. Every pass is run on a copy of Leona that draws nothing,
+     * and its start is written as a USE of the instance for the pen and
+     * color it starts with. The first time a pass starts with those, it is
+     * also run on a RecordingLeona first, which writes its moves as the DEF
+     * of a new instance; the passes of loops nested in it become USEs in
+     * that DEF. Since a pass is run the same way whatever its start, every
+     * later pass with the same pen and color makes the same moves.
+     */
+    private void instance(Leona leona, int pc, int[] counters, int depth, InstanceWriter writer) {
+        int count = code[pc + 1];
+        int body = pc + (code[pc] == LOOP_SUMMARY ? 5 : 3);
+        int bodyEnd = code[pc + 2] - 2;  // the LOOP_END that closes the body
+        Leona ghost = leona.copy((color, x1, y1, x2, y2) -> { });
+        int id = -1;
+        boolean up = false;
+        String color = null;
+
+        for (int i = 0; i < count; i++) {
+            if (id < 0 || leona.up != up || !leona.color.equals(color)) {
+                up = leona.up;
+                color = leona.color;
+                id = writer.find(pc, up, color);
+                if (id < 0) {
+                    id = writer.begin(pc, up, color);
+                    execute(new RecordingLeona(up, color, writer), body, bodyEnd, counters, depth, null);
+                    writer.end();
+                }
+            }
+            writer.place(id, leona.x, leona.y, leona.angle);
+            ghost.assign(leona);
+            execute(ghost, body, bodyEnd, counters, depth, null);
+            leona.assign(ghost);
+        }
+    }
+
+    /**
+     * Returns, by pc of each loop instruction, whether every pass through
+     * the loop body changes the position only by the moves it runs, one
+     * by one, so that it can be replayed from them (see InstanceWriter).
+     * That is not so if the body holds a loop that repeat may finish with
+     * one translate, i.e. a LOOP_SUMMARY that does not turn.
+     */
+    private synchronized boolean[] replayable() {
+        if (replayable == null) {
+            boolean[] result = new boolean[code.length];
+            replayable(0, code.length, result);
+            replayable = result;
+        }
+        return replayable;
+    }
+
+    private boolean replayable(int pc, int end, boolean[] replayable) {
+        boolean all = true;
+        while (pc < end) {
+            if (code[pc] == LOOP_BEGIN || code[pc] == LOOP_SUMMARY) {
+                int body = pc + (code[pc] == LOOP_SUMMARY ? 5 : 3);
+                replayable[pc] = replayable(body, code[pc + 2] - 2, replayable);
+                all &= replayable[pc] && !(code[pc] == LOOP_SUMMARY && code[pc + 3] == 0 && code[pc + 1] > 1);
+                pc = code[pc + 2];
+            } else {
+                pc += 2;  // MOVE, TURN, PEN, COLOR (LOOP_END is never reached)
+            }
+        }
+        return all;
+    }
+
+    /**
+     * The box of an extent started at (x, y) with the given heading, as
+     * offsets from there, grown a little for the rounding of the positions.
+     */
+    private static double[] box(Extent extent, int angle, double x, double y) {
+        double[] box = extent.box(angle);
+        double slack = 1e-6 * (1 + Math.abs(x) + Math.abs(y) + (box[2] - box[0]) + (box[3] - box[1]));
+        box[0] -= slack;
+        box[1] -= slack;
+        box[2] += slack;
+        box[3] += slack;
+        return box;
+    }
+
+    /**
+     * Returns, by pc of each loop instruction, the total length of the
+     * moves of one pass through the loop body (counting nested loops in
+     * full), which is as far as that pass can take Leona.
+     */
+    private synchronized double[] reach() {
+        if (reach == null) {
+            double[] result = new double[code.length];
+            length(0, code.length, result);
+            reach = result;
+        }
+        return reach;
+    }
+
+    private double length(int pc, int end, double[] reach) {
+        double sum = 0;
+        while (pc < end) {
+            switch (code[pc]) {
+                case MOVE:
+                    sum += Math.abs((double) code[pc + 1]);
+                    pc += 2;
+                    break;
+                case LOOP_BEGIN:
+                case LOOP_SUMMARY:
+                    int body = pc + (code[pc] == LOOP_SUMMARY ? 5 : 3);
+                    reach[pc] = length(body, code[pc + 2] - 2, reach);
+                    sum += reach[pc] * Math.max(code[pc + 1], 0);
+                    pc = code[pc + 2];
+                    break;
+                default:
+                    pc += 2;  // TURN, PEN, COLOR (LOOP_END is never reached)
+                    break;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Runs all iterations of the drawing loop at pc on the pool.
+     *
+     * The iterations are split into chunks. Each chunk runs on its own copy
+     * of Leona, drawing into a sink forked from Leona's, and the forked
+     * sinks are joined back in order. For the output to match a sequential
+     * run exactly, every chunk must start from exactly the state the
+     * sequential run would have there. Composing per-iteration transforms
+     * would not give that, because floating-point sums depend on their
+     * order. Instead, the start states come from one sequential pass that
+     * only moves a copy of Leona around without drawing. That pass skips
+     * the formatting and writing of segments, which is where the time goes.
+     * Chunks are handed out in waves, so only a few chunks' output is held
+     * in memory at a time.
+     */
+    private void parallel(Leona leona, int pc, int body, ForkJoinPool pool) {
+        int count = code[pc + 1];
+        int bodyEnd = code[pc + 2] - 2;  // the LOOP_END that closes the body
+        int threads = pool.getParallelism();
+        int chunk = Math.max(1, Math.min(count / (2 * threads), 1024));
+        int[] counters = new int[maxDepth];
+
+        // walks through the loop ahead of the chunks to find their start states
+        Leona scout = leona.copy((color, x1, y1, x2, y2) -> { });
+        scout.metrics = leona.metrics;  // the scout runs every statement once, so it counts them
+        int done = 0;
+
+        while (done < count) {
+            List<ForkJoinTask<SegmentSink>> wave = new ArrayList<>();
+            for (int t = 0; t < 2 * threads && done < count; t++) {
+                int iterations = Math.min(chunk, count - done);
+                Leona start = scout.copy(leona.sink.fork());
+                wave.add(pool.submit(() -> {
+                    int[] own = new int[maxDepth];
+                    for (int i = 0; i < iterations; i++) {
+                        execute(start, body, bodyEnd, own, 0, null);
+                    }
+                    return start.sink;
+                }));
+
+                for (int i = 0; i < iterations; i++) {
+                    execute(scout, body, bodyEnd, counters, 0, null);
+                }
+                done += iterations;
+            }
+
+            for (ForkJoinTask<SegmentSink> task : wave) {
+                leona.sink.join(task.join());
+            }
+        }
+
+        leona.assign(scout);
+    }
+
+    /**
+     * Writes the program in a compact form: a header, the colors, and
+     * the code as variable-length integers (small values take one byte).
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeInt(maxDepth);
+        out.writeInt(colors.length);
+        for (String color : colors) {
+            out.writeUTF(color);
+        }
+        out.writeInt(code.length);
+        for (int word : code) {
+            int zigzag = (word << 1) ^ (word >> 31);  // small negatives stay small
+            while ((zigzag & ~0x7F) != 0) {
+                out.writeByte(zigzag & 0x7F | 0x80);
+                zigzag >>>= 7;
+            }
+            out.writeByte(zigzag);
+        }
+    }
+
+    /**
+     * Reads a program written by write.
+     */
+    public static Program read(DataInput in) throws IOException {
+        return read(in, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads a program written by write from at most the given number of
+     * bytes, such as the size of the file it is in. Counts that could not
+     * fit in that many bytes, and code that is not what compile makes
+     * (see verify), throw IOException, so a damaged program is never
+     * allocated for or run.
+     */
+    public static Program read(DataInput in, long bytes) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+            throw new IOException("not a compiled program of this version");
+        }
+        int maxDepth = in.readInt();
+        int colorCount = in.readInt();
+        if (colorCount < 0 || colorCount > (bytes - 16) / 2) {  // every color takes at least 2 bytes
+            throw new IOException("bad color count " + colorCount);
+        }
+        String[] colors = new String[colorCount];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = in.readUTF();
+        }
+        int codeLength = in.readInt();
+        if (codeLength < 0 || codeLength > bytes - 20 - 2L * colorCount) {  // every word takes at least 1 byte
+            throw new IOException("bad code length " + codeLength);
+        }
+        if (maxDepth < 0 || maxDepth > codeLength / 5) {  // every loop takes at least 5 words
+            throw new IOException("bad loop depth " + maxDepth);
+        }
+        int[] code = new int[codeLength];
+        for (int i = 0; i < code.length; i++) {
+            int zigzag = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 28) {
+                    throw new IOException("bad code word at " + i);
+                }
+                b = in.readByte();
+                zigzag |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            code[i] = (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        verify(code, colors, maxDepth);
+        return new Program(code, colors, maxDepth);
+    }
+
+    /**
+     * Checks that code has the shape compile gives it: known opcodes with
+     * all their operands, colors in the pool, rotations between 0 and 359,
+     * and every loop closed by a LOOP_END that jumps back to its body, with
+     * the loop's end just after it and no deeper nesting than maxDepth.
+     */
+    static void verify(int[] code, String[] colors, int maxDepth) throws IOException {
+        int[] open = new int[maxDepth];  // pc of every loop not closed yet
+        int depth = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc];
+            int width = opcode == LOOP_SUMMARY ? 5 : opcode == LOOP_BEGIN ? 3 : 2;
+            if (opcode < MOVE || opcode > LOOP_SUMMARY || pc + width > code.length) {
+                throw new IOException("bad instruction at " + pc);
+            }
+            switch (opcode) {
+                case COLOR:
+                    if (code[pc + 1] < 0 || code[pc + 1] >= colors.length) {
+                        throw new IOException("bad color at " + pc);
+                    }
+                    break;
+                case LOOP_BEGIN:
+                case LOOP_SUMMARY:
+                    if (depth == maxDepth || code[pc + 2] < pc + width + 2 || code[pc + 2] > code.length
+                            || opcode == LOOP_SUMMARY && (code[pc + 3] < 0 || code[pc + 3] >= 360)) {
+                        throw new IOException("bad loop at " + pc);
+                    }
+                    open[depth++] = pc;
+                    break;
+                case LOOP_END:
+                    if (depth == 0) {
+                        throw new IOException("loop end without a loop at " + pc);
+                    }
+                    int loop = open[--depth];
+                    int body = loop + (code[loop] == LOOP_SUMMARY ? 5 : 3);
+                    if (code[pc + 1] != body || code[loop + 2] != pc + 2) {
+                        throw new IOException("bad loop end at " + pc);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            pc += width;
+        }
+        if (depth != 0) {
+            throw new IOException("loop at " + open[depth - 1] + " is not closed");
+        }
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
+
+/**
+ * Collects instructions and colors while a parse tree compiles itself.
+ */
+class ProgramBuilder {
+    private int[] code = new int[64];
+    private int size;
+    private List<String> colors = new ArrayList<>();
+    private Map<String, Integer> colorIndex = new HashMap<>();
+    private int depth;
+    private int maxDepth;
+    public boolean extents;  // whether to keep the extents of loops
+    private Extent[] loops = new Extent[64];
+    private Extent[] bodies = new Extent[64];
+
+    /**
+     * Appends an instruction and returns its position.
+     */
+    public int emit(int opcode, int operand) {
+        ensure(2);
+        code[size] = opcode;
+        code[size + 1] = operand;
+        size += 2;
+        return size - 2;
+    }
+
+    public int emit(int opcode, int first, int second) {
+        ensure(3);
+        code[size] = opcode;
+        code[size + 1] = first;
+        code[size + 2] = second;
+        size += 3;
+        return size - 3;
+    }
+
+    public int emit(int opcode, int first, int second, int third, int fourth) {
+        ensure(5);
+        code[size] = opcode;
+        code[size + 1] = first;
+        code[size + 2] = second;
+        code[size + 3] = third;
+        code[size + 4] = fourth;
+        size += 5;
+        return size - 5;
+    }
+
+    /**
+     * Overwrites an already emitted word, used to fill in jump targets.
+     */
+    public void patch(int at, int value) {
+        code[at] = value;
+    }
+
+    /**
+     * Position of the next instruction to be emitted.
+     */
+    public int position() {
+        return size;
+    }
+
+    /**
+     * Returns the pool index of a color, adding it if it is new.
+     */
+    public int color(String color) {
+        Integer index = colorIndex.get(color);
+        if (index == null) {
+            index = colors.size();
+            colors.add(color);
+            colorIndex.put(color, index);
+        }
+        return index;
+    }
+
+    /**
+     * Records the extents of the loop at pc, if extents are kept. They are
+     * only worked out then.
+     */
+    public void extent(int pc, ParseTree loop, ParseTree body) {
+        if (extents) {
+            loops[pc] = loop.extent();
+            bodies[pc] = body.extent();
+        }
+    }
+
+    public void enterLoop() {
+        depth++;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    public void exitLoop() {
+        depth--;
+    }
+
+    public Program build() {
+        int[] result = new int[size];
+        System.arraycopy(code, 0, result, 0, size);
+        Program program = new Program(result, colors.toArray(new String[0]), maxDepth);
+        if (extents) {
+            program.loops = Arrays.copyOf(loops, size);
+            program.bodies = Arrays.copyOf(bodies, size);
+        }
+        return program;
+    }
+
+    private void ensure(int words) {
+        if (size + words > code.length) {
+            int[] bigger = new int[Math.max(code.length * 2, size + words)];
+            System.arraycopy(code, 0, bigger, 0, size);
+            code = bigger;
+            if (extents) {
+                loops = Arrays.copyOf(loops, bigger.length);
+                bodies = Arrays.copyOf(bodies, bigger.length);
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compiled programs, keyed by a hash (SHA-256) of their source text, so a
+ * program seen before is not lexed, parsed and compiled again. Programs
+ * are kept in memory up to a total size, counted in code words; when that
+ * is exceeded the least recently used ones are dropped.
+ *
+ * With a directory, every compiled program is also stored there as a file
+ * named after its hash (see Program.write), and programs not in memory are
+ * looked for there, so other runs and other processes can share them.
+ *
+ * All methods may be called from several threads at once.
+ */
+public class ProgramCache {
+    private final long capacity;   // most code words kept in memory
+    private final Path directory;  // where programs are stored, or null
+    private final LinkedHashMap<String, Program> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;             // code words of the programs in entries
+
+    private long hits;             // programs found in memory
+    private long diskHits;         // programs found in the directory
+    private long misses;           // programs that had to be compiled
+    private long evictions;        // programs dropped to make room
+
+    public ProgramCache(long capacity, Path directory) throws IOException {
+        this.capacity = capacity;
+        this.directory = directory;
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+    }
+
+    /**
+     * Returns the compiled form of the program text, compiling it only if
+     * it is not cached yet. The text is read the way Main reads standard
+     * input. Programs with syntax errors are not cached.
+     */
+    public Program compile(byte[] text) throws SyntaxError {
+        String key = hash(text);
+
+        Program program = lookup(key);
+        if (program != null) {
+            return program;
+        }
+
+        Lexer lexer = new Lexer(new InputStreamReader(new ByteArrayInputStream(text)));
+        program = Program.compile(new Parser(lexer).parse());
+        store(key, program);
+        return program;
+    }
+
+    private Program lookup(String key) {
+        synchronized (this) {
+            Program program = entries.get(key);
+            if (program != null) {
+                hits++;
+                return program;
+            }
+        }
+
+        Program program = load(key);
+        synchronized (this) {
+            if (program != null) {
+                diskHits++;
+                remember(key, program);
+            } else {
+                misses++;
+            }
+        }
+        return program;
+    }
+
+    private void store(String key, Program program) {
+        synchronized (this) {
+            remember(key, program);
+        }
+        save(key, program);
+    }
+
+    /**
+     * Adds a program to memory, dropping the least recently used ones
+     * until everything fits. Programs bigger than the whole cache are
+     * not kept.
+     */
+    private void remember(String key, Program program) {
+        if (program.code.length > capacity || entries.containsKey(key)) {
+            return;
+        }
+        entries.put(key, program);
+        size += program.code.length;
+
+        Iterator<Map.Entry<String, Program>> oldest = entries.entrySet().iterator();
+        while (size > capacity) {
+            size -= oldest.next().getValue().code.length;
+            oldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Reads a program from the directory, or returns null if it is not
+     * there or cannot be read.
+     */
+    private Program load(String key) {
+        if (directory == null) {
+            return null;
+        }
+        Path file = directory.resolve(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            return Program.read(in, Files.size(file));
+        } catch (IOException | RuntimeException e) {
+            return null;  // damaged or from another version; it is compiled and saved again
+        }
+    }
+
+    /**
+     * Writes a program to the directory. The file is written under a
+     * temporary name and then renamed, so readers never see half a file.
+     */
+    private void save(String key, Program program) {
+        if (directory == null) {
+            return;
+        }
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(directory, key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                program.write(out);
+            }
+            Files.move(temp, directory.resolve(key), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // the directory is only an optimization; the program is still in memory,
+            // but a half-written file must not be left behind in it
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // nothing more can be done
+                }
+            }
+        }
+    }
+
+    private static String hash(byte[] text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text);
+            StringBuilder hex = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                hex.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // every Java platform has SHA-256
+        }
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long diskHits() {
+        return diskHits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    public synchronized String toString() {
+        return "programs " + entries.size() + " (" + size + " words), hits " + hits
+                + ", disk hits " + diskHits + ", misses " + misses + ", evictions " + evictions;
+    }
+}
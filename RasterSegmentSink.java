@@ -0,0 +1,233 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import javax.imageio.ImageIO;
+
+/**
+ * Draws segments straight into an image instead of writing them out, so
+ * they never have to be formatted as text and parsed again.
+ *
+ * The image is width x height pixels on a white background. A unit of
+ * the drawing is scale pixels, and the point (centerX, centerY) of the
+ * drawing is in the middle of the image; y grows upwards, as in Leona.
+ * A segment lights up the pixels a simple DDA steps through: it is cut
+ * to the image, and then sampled at one point per pixel along its longer
+ * axis. Segments drawn later paint over earlier ones.
+ *
+ * Segments are collected in batches. Each batch is sorted into the tiles
+ * of the image its segments touch, and the tiles are then drawn at the
+ * same time on a pool, each taking its segments in order. A segment is
+ * sampled the same way whichever tiles it crosses, so the image does not
+ * depend on the tiling or on the number of threads.
+ *
+ * Forked sinks keep their segments in memory and are replayed through
+ * this sink on join (the default of SegmentSink).
+ */
+class RasterSegmentSink implements SegmentSink {
+    private static final int TILE = 256;     // tile width and height in pixels
+    private static final int BATCH = 1 << 16; // segments drawn at a time
+    private static final int BACKGROUND = 0xFFFFFF;
+
+    public final int width, height;
+    public final int[] pixels;  // 0xRRGGBB, row by row from the top
+
+    private final double scale, centerX, centerY;
+    private final ForkJoinPool pool;  // draws the tiles, or null to draw them here
+    private final int tilesX, tilesY;
+
+    // the current batch: endpoints in pixel coordinates, and colors
+    private final double[] coords = new double[4 * BATCH];
+    private final int[] rgb = new int[BATCH];
+    private int size;
+    private String lastColor;  // color of the previous segment
+    private int lastRgb;       // its value
+
+    public RasterSegmentSink(int width, int height, double scale, double centerX, double centerY,
+            ForkJoinPool pool) {
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("bad image size " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.scale = scale;
+        this.centerX = centerX;
+        this.centerY = centerY;
+        this.pool = pool;
+        pixels = new int[width * height];
+        Arrays.fill(pixels, BACKGROUND);
+        tilesX = (width + TILE - 1) / TILE;
+        tilesY = (height + TILE - 1) / TILE;
+    }
+
+    public void accept(String color, double x1, double y1, double x2, double y2) {
+        if (color != lastColor) {
+            lastColor = color;
+            lastRgb = Integer.parseInt(color.substring(1), 16);
+        }
+        int i = 4 * size;
+        coords[i] = (x1 - centerX) * scale + width / 2.0;
+        coords[i + 1] = height / 2.0 - (y1 - centerY) * scale;
+        coords[i + 2] = (x2 - centerX) * scale + width / 2.0;
+        coords[i + 3] = height / 2.0 - (y2 - centerY) * scale;
+        rgb[size] = lastRgb;
+        if (++size == BATCH) {
+            draw();
+        }
+    }
+
+    public void flush() {
+        draw();
+    }
+
+    /**
+     * Draws the current batch and starts a new one.
+     */
+    private void draw() {
+        if (size == 0) {
+            return;
+        }
+
+        // sort the segments into the tiles their bounding boxes touch
+        int[][] bins = new int[tilesX * tilesY][];
+        int[] counts = new int[bins.length];
+        for (int s = 0; s < size; s++) {
+            int i = 4 * s;
+            if (Math.max(coords[i], coords[i + 2]) < 0 || Math.min(coords[i], coords[i + 2]) >= width
+                    || Math.max(coords[i + 1], coords[i + 3]) < 0
+                    || Math.min(coords[i + 1], coords[i + 3]) >= height) {
+                continue;  // entirely outside the image
+            }
+            int tx0 = tile(Math.min(coords[i], coords[i + 2]), tilesX);
+            int tx1 = tile(Math.max(coords[i], coords[i + 2]), tilesX);
+            int ty0 = tile(Math.min(coords[i + 1], coords[i + 3]), tilesY);
+            int ty1 = tile(Math.max(coords[i + 1], coords[i + 3]), tilesY);
+            for (int ty = ty0; ty <= ty1; ty++) {
+                for (int tx = tx0; tx <= tx1; tx++) {
+                    int t = ty * tilesX + tx;
+                    if (bins[t] == null) {
+                        bins[t] = new int[16];
+                    } else if (counts[t] == bins[t].length) {
+                        bins[t] = Arrays.copyOf(bins[t], 2 * counts[t]);
+                    }
+                    bins[t][counts[t]++] = s;
+                }
+            }
+        }
+
+        if (pool == null || bins.length == 1) {
+            for (int t = 0; t < bins.length; t++) {
+                drawTile(t, bins[t], counts[t]);
+            }
+        } else {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < bins.length; t++) {
+                if (counts[t] > 0) {
+                    int tile = t;
+                    tasks.add(pool.submit(() -> drawTile(tile, bins[tile], counts[tile])));
+                }
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+        size = 0;
+    }
+
+    /**
+     * The index of the tile holding a pixel coordinate, clamped to the image.
+     */
+    private static int tile(double coordinate, int tiles) {
+        if (!(coordinate >= 0)) {  // also NaN
+            return 0;
+        }
+        return (int) Math.min(tiles - 1, coordinate / TILE);
+    }
+
+    /**
+     * Draws the given segments of the batch, in order, into one tile.
+     */
+    private void drawTile(int tile, int[] segments, int count) {
+        int left = (tile % tilesX) * TILE;
+        int top = (tile / tilesX) * TILE;
+        int right = Math.min(left + TILE, width);
+        int bottom = Math.min(top + TILE, height);
+
+        double[] t = new double[2];
+        for (int k = 0; k < count; k++) {
+            int s = segments[k];
+            int i = 4 * s;
+            double x1 = coords[i], y1 = coords[i + 1];
+            double dx = coords[i + 2] - x1, dy = coords[i + 3] - y1;
+
+            // cut the segment to the image, the same way for every tile
+            t[0] = 0;
+            t[1] = 1;
+            if (!(clip(t, -dx, x1) && clip(t, dx, width - x1) && clip(t, -dy, y1) && clip(t, dy, height - y1))) {
+                continue;
+            }
+            double sx = x1 + t[0] * dx, sy = y1 + t[0] * dy;
+            double ex = x1 + t[1] * dx, ey = y1 + t[1] * dy;
+            int n = (int) Math.ceil(Math.max(Math.abs(ex - sx), Math.abs(ey - sy)));
+            double stepX = n == 0 ? 0 : (ex - sx) / n;
+            double stepY = n == 0 ? 0 : (ey - sy) / n;
+
+            // only the samples that can fall in this tile
+            t[0] = 0;
+            t[1] = n;
+            if (!(clip(t, -stepX, sx - (left - 1)) && clip(t, stepX, right + 1 - sx)
+                    && clip(t, -stepY, sy - (top - 1)) && clip(t, stepY, bottom + 1 - sy))) {
+                continue;
+            }
+            int first = Math.max(0, (int) Math.floor(t[0]));
+            int last = Math.min(n, (int) Math.ceil(t[1]));
+
+            int color = rgb[s];
+            for (int j = first; j <= last; j++) {
+                int px = (int) Math.floor(sx + j * stepX);
+                int py = (int) Math.floor(sy + j * stepY);
+                if (px >= left && px < right && py >= top && py < bottom) {
+                    pixels[py * width + px] = color;
+                }
+            }
+        }
+    }
+
+    /**
+     * Narrows t to where p * t <= q holds; returns false if nothing is left
+     * (see ClippingSegmentSink).
+     */
+    private static boolean clip(double[] t, double p, double q) {
+        if (p == 0) {
+            return q >= 0;
+        }
+        double r = q / p;
+        if (p < 0) {
+            if (r > t[1]) {
+                return false;
+            }
+            t[0] = Math.max(t[0], r);
+        } else {
+            if (r < t[0]) {
+                return false;
+            }
+            t[1] = Math.min(t[1], r);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the image as a PNG file. Call flush first.
+     */
+    public void write(Path file) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        if (!ImageIO.write(image, "png", file.toFile())) {
+            throw new IOException("no PNG writer available");
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Decodes output written by BinarySegmentSink back into segments.
+ * Run on its own, it prints the file named on the command line in the
+ * text output format, so it can be compared with the text the program
+ * prints directly. (For files written with FLOAT32, the printed values
+ * are the rounded floats.)
+ */
+public class SegmentReader {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    public SegmentReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.limit(0);
+    }
+
+    public static void main(String[] args) throws IOException {
+        SegmentSink sink = new TextSegmentSink(new FileOutputStream(FileDescriptor.out).getChannel());
+        try (FileChannel channel = FileChannel.open(Paths.get(args[0]))) {
+            new SegmentReader(channel).read(sink);
+        }
+        sink.flush();
+    }
+
+    /**
+     * Reads every segment and passes it to the sink.
+     */
+    public void read(SegmentSink sink) throws IOException {
+        byte[] magic = new byte[4];
+        need(16);
+        buffer.get(magic);
+        if (!Arrays.equals(magic, BinarySegmentSink.MAGIC)) {
+            throw new IOException("not a segment file");
+        }
+        int version = buffer.getInt();
+        if (version != BinarySegmentSink.VERSION) {
+            throw new IOException("unsupported segment file version " + version);
+        }
+        boolean float32 = (buffer.getInt() & BinarySegmentSink.FLOAT32) != 0;
+        need(8);
+        long count = buffer.getLong();
+
+        need(4);
+        int colors = buffer.getInt();
+        if (colors < 0) {
+            throw new IOException("bad palette size " + colors);
+        }
+        String[] palette = new String[colors];
+        for (int i = 0; i < palette.length; i++) {
+            need(1);
+            byte[] color = new byte[buffer.get() & 0xff];
+            need(color.length);
+            buffer.get(color);
+            palette[i] = new String(color, StandardCharsets.US_ASCII);
+        }
+
+        int width = float32 ? 20 : 36;
+        for (long n = 0; count < 0 || n < count; n++) {
+            if (!fill(width)) {
+                if (count >= 0 || buffer.hasRemaining()) {
+                    throw new EOFException("segment file ends early");
+                }
+                break;
+            }
+            int index = buffer.getInt();
+            if (index < 0 || index >= palette.length) {
+                throw new IOException("bad palette index " + index + " in segment " + n);
+            }
+            String color = palette[index];
+            if (float32) {
+                sink.accept(color, buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+            } else {
+                sink.accept(color, buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+            }
+        }
+    }
+
+    private void need(int bytes) throws IOException {
+        if (!fill(bytes)) {
+            throw new EOFException("segment file ends early");
+        }
+    }
+
+    /**
+     * Makes sure the given number of bytes is buffered, reading more if
+     * needed. Returns false if the input ends first.
+     */
+    private boolean fill(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return true;
+        }
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) == -1) {
+                buffer.flip();
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+}
@@ -0,0 +1,276 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Destination for the line segments Leona draws.
+ * Leona hands every segment drawn with the pen down to its sink,
+ * which decides what to do with it (print it, store it, count it, ...).
+ */
+public interface SegmentSink {
+    /**
+     * Receives one segment from (x1, y1) to (x2, y2) drawn in the given color.
+     */
+    void accept(String color, double x1, double y1, double x2, double y2);
+
+    /**
+     * Pushes out anything the sink has buffered. Called once drawing is done.
+     */
+    default void flush() {
+    }
+
+    /**
+     * Returns a new, empty sink whose segments can later be added to the
+     * end of this sink's output with join. Forked sinks let several threads
+     * produce parts of the output at once; each should keep its output in
+     * the final form (text, binary, ...) so joining is only a copy. The
+     * default keeps the segments in memory and replays them.
+     */
+    default SegmentSink fork() {
+        return new ListSegmentSink();
+    }
+
+    /**
+     * Appends the output of a sink returned by fork.
+     */
+    default void join(SegmentSink part) {
+        for (Segment segment : ((ListSegmentSink) part).segments) {
+            accept(segment.color, segment.x1, segment.y1, segment.x2, segment.y2);
+        }
+    }
+}
+
+/**
+ * Writes segments as text lines ("#RRGGBB x1 y1 x2 y2") to a channel.
+ * Lines are encoded straight into one large byte buffer, which is only
+ * written out when full or on flush. Nothing is synchronized, so a sink
+ * must only be used from one thread at a time.
+ *
+ * A sink without a channel keeps all its output in memory, growing the
+ * buffer as needed; fork returns such sinks.
+ *
+ * Coordinates are formatted by a DoubleFormatter, like Double.toString or
+ * rounded to a fixed number of decimals.
+ */
+class TextSegmentSink implements SegmentSink {
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+
+    private final WritableByteChannel channel;
+    private ByteBuffer buffer;
+    private final DoubleFormatter format;
+    private String lastColor;       // color of the previous segment
+    private byte[] lastColorBytes;  // its encoded form
+
+    public TextSegmentSink(WritableByteChannel channel) {
+        this(channel, 1 << 20);
+    }
+
+    public TextSegmentSink(WritableByteChannel channel, int bufferSize) {
+        this(channel, bufferSize, DoubleFormatter.SHORTEST);
+    }
+
+    /**
+     * A sink writing coordinates with the given number of decimals, or
+     * like Double.toString for DoubleFormatter.SHORTEST.
+     */
+    public TextSegmentSink(WritableByteChannel channel, int bufferSize, int decimals) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.format = new DoubleFormatter(decimals);
+    }
+
+    public SegmentSink fork() {
+        return new TextSegmentSink(null, 1 << 16, format.decimals);
+    }
+
+    public void join(SegmentSink part) {
+        ByteBuffer bytes = ((TextSegmentSink) part).buffer;
+        bytes.flip();
+        if (bytes.remaining() > buffer.remaining()) {
+            drain();
+        }
+        if (bytes.remaining() > buffer.remaining() && channel != null) {
+            write(bytes);
+        } else {
+            put(bytes);
+        }
+        bytes.clear();
+    }
+
+    public void accept(String color, double x1, double y1, double x2, double y2) {
+        // room for the longest possible line
+        if (buffer.remaining() < color.length() + 4 * (1 + DoubleFormatter.MAX_LENGTH) + NEWLINE.length) {
+            drain();
+        }
+
+        if (color != lastColor) {
+            lastColor = color;
+            lastColorBytes = color.getBytes();
+        }
+        buffer.put(lastColorBytes);
+        putDouble(x1);
+        putDouble(y1);
+        putDouble(x2);
+        putDouble(y2);
+        buffer.put(NEWLINE);
+    }
+
+    /**
+     * Writes the first length bytes of the array as they are, between the
+     * segments; they must end with a newline. This is for formats that mix
+     * other lines with segment lines (see InstanceWriter).
+     */
+    void putLines(byte[] bytes, int length) {
+        ByteBuffer lines = ByteBuffer.wrap(bytes, 0, length);
+        if (length > buffer.remaining()) {
+            drain();
+        }
+        if (length > buffer.remaining() && channel != null) {
+            write(lines);
+        } else {
+            put(lines);
+        }
+    }
+
+    /**
+     * Appends a space and the value, formatted straight into the array
+     * behind the buffer.
+     */
+    private void putDouble(double value) {
+        byte[] bytes = buffer.array();
+        int pos = buffer.arrayOffset() + buffer.position();
+        bytes[pos++] = ' ';
+        pos = format.format(value, bytes, pos);
+        buffer.position(pos - buffer.arrayOffset());
+    }
+
+    public void flush() {
+        drain();
+    }
+
+    private void drain() {
+        if (channel == null) {
+            buffer = grow(buffer, buffer.capacity());
+            return;
+        }
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    private void write(ByteBuffer bytes) {
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void put(ByteBuffer bytes) {
+        if (bytes.remaining() > buffer.remaining()) {
+            buffer = grow(buffer, bytes.remaining());
+        }
+        buffer.put(bytes);
+    }
+
+    /**
+     * Returns a copy of buffer with at least extra more bytes of room.
+     */
+    static ByteBuffer grow(ByteBuffer buffer, int extra) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra))
+                .order(buffer.order());
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
+
+/**
+ * Counts segments, for when the drawing itself is not needed, or on
+ * their way to another sink. Forked counters fork the target too, so
+ * counting does not change how the target joins its parts.
+ */
+class CountingSegmentSink implements SegmentSink {
+    private final SegmentSink target;  // where segments go on to, or null
+    public long segments;
+
+    public CountingSegmentSink() {
+        this(null);
+    }
+
+    public CountingSegmentSink(SegmentSink target) {
+        this.target = target;
+    }
+
+    public void accept(String color, double x1, double y1, double x2, double y2) {
+        segments++;
+        if (target != null) {
+            target.accept(color, x1, y1, x2, y2);
+        }
+    }
+
+    public void flush() {
+        if (target != null) {
+            target.flush();
+        }
+    }
+
+    public SegmentSink fork() {
+        return new CountingSegmentSink(target != null ? target.fork() : null);
+    }
+
+    public void join(SegmentSink part) {
+        CountingSegmentSink counted = (CountingSegmentSink) part;
+        segments += counted.segments;
+        if (target != null) {
+            target.join(counted.target);
+        }
+    }
+}
+
+/**
+ * Keeps all segments in memory.
+ */
+class ListSegmentSink implements SegmentSink {
+    public List<Segment> segments = new ArrayList<>();
+
+    public void accept(String color, double x1, double y1, double x2, double y2) {
+        segments.add(new Segment(color, x1, y1, x2, y2));
+    }
+
+    public SegmentSink fork() {
+        return new ListSegmentSink();
+    }
+
+    public void join(SegmentSink part) {
+        segments.addAll(((ListSegmentSink) part).segments);
+    }
+}
+
+/**
+ * A single drawn line segment.
+ */
+class Segment {
+    public final String color;
+    public final double x1, y1, x2, y2;
+
+    public Segment(String color, double x1, double y1, double x2, double y2) {
+        this.color = color;
+        this.x1 = x1;
+        this.y1 = y1;
+        this.x2 = x2;
+        this.y2 = y2;
+    }
+
+    /**
+     * Returns the segment in the text output format.
+     */
+    public String toString() {
+        return color + " " + x1 + " " + y1 + " " + x2 + " " + y2;
+    }
+}
@@ -0,0 +1,281 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs programs sent over a socket, so that many small programs share
+ * one warmed-up JVM instead of each paying for startup and JIT warm-up.
+ * Every connection is served on a thread of its own, and every program
+ * gets its own Leona, so clients do not affect each other.
+ *
+ * A client sends one or more programs on a connection, each as a 4-byte
+ * big-endian length followed by that many bytes of program text (in the
+ * platform charset, as Main reads it). The answer to each program is a
+ * series of frames, each a kind byte, a 4-byte big-endian length and that
+ * many bytes:
+ *
+ *   OUTPUT   segment text, exactly as Main writes it; there may be many
+ *   DONE     the program ran to the end (empty)
+ *   ERROR    syntax error message (UTF-8); no OUTPUT comes before it
+ *   FAILURE  the program could not be run (UTF-8 description)
+ *
+ * DONE, ERROR and FAILURE end the answer. A length that is negative or
+ * above the maximum request size is answered with FAILURE, and the
+ * connection is closed, since the rest of what was sent cannot be trusted.
+ *
+ * Compiled programs are kept in a ProgramCache, so a program sent again
+ * is not parsed again. Its counters are printed when the server stops.
+ *
+ * Usage: java Server [--socket PATH | --port N] [--threads N] [--compensated]
+ *                    [--cache DIR] [--cache-size WORDS] [--max-request BYTES]
+ * Without --socket the server listens on the loopback address only.
+ * --cache keeps compiled programs in DIR as well, and --cache-size bounds
+ * the programs kept in memory (in code words, default 16M). --max-request
+ * bounds the size of one program (default 64 MB).
+ */
+public class Server {
+    public static final byte OUTPUT = 'O';
+    public static final byte DONE = 'D';
+    public static final byte ERROR = 'E';
+    public static final byte FAILURE = 'F';
+
+    public static final int DEFAULT_PORT = 7181;
+    public static final int DEFAULT_MAX_REQUEST = 64 << 20;
+
+    private final ServerSocketChannel listener;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private final ForkJoinPool pool;    // for large loops, or null to run them on one thread
+    private final boolean compensated;  // whether each Leona uses compensated summation
+    private final ProgramCache cache;   // compiled programs by source text
+    private final int maxRequest;       // largest program accepted, in bytes
+
+    public Server(SocketAddress address, int threads, boolean compensated, ProgramCache cache)
+            throws IOException {
+        this(address, threads, compensated, cache, DEFAULT_MAX_REQUEST);
+    }
+
+    public Server(SocketAddress address, int threads, boolean compensated, ProgramCache cache,
+            int maxRequest) throws IOException {
+        if (address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());  // left by an earlier server
+            listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            listener = ServerSocketChannel.open();
+        }
+        listener.bind(address);
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        this.compensated = compensated;
+        this.cache = cache;
+        this.maxRequest = maxRequest;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String socket = null;
+        int port = DEFAULT_PORT;
+        int threads = 1;
+        boolean compensated = false;
+        String directory = null;
+        long cacheSize = 1 << 24;
+        int maxRequest = DEFAULT_MAX_REQUEST;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--socket")) {
+                socket = args[++i];
+            } else if (args[i].equals("--port")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--compensated")) {
+                compensated = true;
+            } else if (args[i].equals("--cache")) {
+                directory = args[++i];
+            } else if (args[i].equals("--cache-size")) {
+                cacheSize = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--max-request")) {
+                maxRequest = Integer.parseInt(args[++i]);
+            }
+        }
+
+        ProgramCache cache = new ProgramCache(cacheSize, directory != null ? Path.of(directory) : null);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println("cache: " + cache)));
+        new Server(address(socket, port), threads, compensated, cache, maxRequest).serve();
+    }
+
+    /**
+     * The address to use: the Unix domain socket at path if there is one,
+     * else the given port on the loopback address.
+     */
+    static SocketAddress address(String path, int port) {
+        if (path != null) {
+            return UnixDomainSocketAddress.of(Path.of(path));
+        }
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * The address the server listens on, with the port chosen if it was 0.
+     */
+    public SocketAddress address() throws IOException {
+        return listener.getLocalAddress();
+    }
+
+    /**
+     * Accepts connections until the listener is closed.
+     */
+    public void serve() throws IOException {
+        while (true) {
+            SocketChannel channel = listener.accept();
+            connections.execute(() -> handle(channel));
+        }
+    }
+
+    /**
+     * Closes the listener, which ends serve. Connections already open are
+     * served until their clients close them.
+     */
+    public void close() throws IOException {
+        listener.close();
+    }
+
+    /**
+     * Answers the programs sent on one connection until the client closes it.
+     */
+    private void handle(SocketChannel channel) {
+        try (channel) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            while (readFully(channel, header)) {
+                int length = header.flip().getInt();
+                header.clear();
+                if (length < 0 || length > maxRequest) {
+                    String message = "program length " + length + " is not between 0 and " + maxRequest;
+                    new FrameChannel(channel).frame(FAILURE, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+                    return;
+                }
+
+                ByteBuffer program = ByteBuffer.allocate(length);
+                if (!readFully(channel, program)) {
+                    throw new IOException("connection closed in the middle of a program");
+                }
+                respond(new FrameChannel(channel), program.array());
+            }
+        } catch (IOException e) {
+            // the client is gone or broke the protocol; there is no one left to answer
+        }
+    }
+
+    /**
+     * Runs one program and sends back its output and how it ended.
+     * The whole program is parsed before anything runs, so a syntax
+     * error is never preceded by output.
+     */
+    private void respond(FrameChannel out, byte[] text) throws IOException {
+        byte kind;
+        String message;
+        try {
+            Program program = cache.compile(text);
+
+            SegmentSink sink = new TextSegmentSink(out);
+            Leona leona = new Leona(0, 0, 0, true, "#0000FF", sink);
+            leona.compensated = compensated;
+            if (pool != null) {
+                program.run(leona, pool);
+            } else {
+                program.run(leona);
+            }
+            sink.flush();
+            kind = DONE;
+            message = "";
+        } catch (SyntaxError e) {
+            kind = ERROR;
+            message = e.getMessage();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();  // writing to the client failed
+            }
+            kind = FAILURE;
+            message = e.toString();
+        } catch (StackOverflowError | OutOfMemoryError e) {
+            // nesting too deep to parse, or a program too big for memory; it
+            // fails alone, and the server and other clients go on
+            kind = FAILURE;
+            message = e.toString();
+        }
+        out.frame(kind, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Reads until buffer is full. Returns false if the channel ends
+     * before anything was read, and fails if it ends part way.
+     */
+    static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                if (buffer.position() == start) {
+                    return false;
+                }
+                throw new IOException("unexpected end of stream");
+            }
+        }
+        return true;
+    }
+}
+
+/**
+ * A channel that sends everything written to it as OUTPUT frames,
+ * so a TextSegmentSink can write straight to a client.
+ */
+class FrameChannel implements WritableByteChannel {
+    private final WritableByteChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(5);
+
+    public FrameChannel(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public int write(ByteBuffer bytes) throws IOException {
+        int length = bytes.remaining();
+        if (length > 0) {
+            frame(Server.OUTPUT, bytes);
+        }
+        return length;
+    }
+
+    /**
+     * Sends one frame of the given kind carrying the remaining bytes of payload.
+     */
+    public void frame(byte kind, ByteBuffer payload) throws IOException {
+        header.clear();
+        header.put(kind).putInt(payload.remaining()).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        while (payload.hasRemaining()) {
+            channel.write(payload);
+        }
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Leaves the connection open for the next frames.
+     */
+    public void close() {
+    }
+}
@@ -1,19 +1,34 @@
+import java.util.EnumSet;
+import java.util.Set;
+
 /**
  * Custom exception class for handling syntax errors during parsing.
- * When thrown, it prints an error message including the row number
- * of the token where the error occurred and terminates the program.
+ * It records the token where the error occurred and the token types that
+ * would have been accepted there; reporting the error (with the row of
+ * that token) is left to whoever catches it.
  */
 public class SyntaxError extends Exception {
     public Token errorToken;
+    public Set<TokenType> expected;  // token types the parser would have accepted
 
     /**
      * Constructs a SyntaxError based on the problematic token.
-     * Prints an error message to standard output and exits the program.
      *
      * @param token the token where the syntax error was detected
      */
     public SyntaxError(Token token) {
-        System.out.println("Syntaxfel på rad " + token.getRow());
-        System.exit(0);
+        this(token, EnumSet.noneOf(TokenType.class));
+    }
+
+    /**
+     * Constructs a SyntaxError that also tells what was expected instead.
+     *
+     * @param token the token where the syntax error was detected
+     * @param expected the token types that would have been accepted
+     */
+    public SyntaxError(Token token, Set<TokenType> expected) {
+        super("Syntaxfel på rad " + token.getRow());
+        errorToken = token;
+        this.expected = expected;
     }
 }
@@ -0,0 +1,184 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A growable list of tokens stored as parallel primitive arrays
+ * rather than one Token object per token. For HEX tokens the data
+ * field holds an index into a table of colors, in which each distinct
+ * color string is stored only once.
+ */
+public class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private byte[] type;           // TokenType ordinal of each token
+    private int[] data;            // numeric value, or color index for HEX
+    private int[] row;             // row in the input source
+    private int size;              // number of tokens
+
+    private List<String> colors = new ArrayList<>();  // distinct colors, by index
+    private long[] colorKeys;      // open-addressing table from packed color text ...
+    private int[] colorIndex;      // ... to index in colors (+1, 0 = empty slot)
+
+    public TokenBuffer() {
+        this(256);
+    }
+
+    public TokenBuffer(int capacity) {
+        type = new byte[capacity];
+        data = new int[capacity];
+        row = new int[capacity];
+        colorKeys = new long[64];
+        colorIndex = new int[64];
+    }
+
+    /**
+     * Appends a token with the given type, numeric value and row.
+     */
+    public void add(TokenType tokenType, int value, int tokenRow) {
+        if (size == type.length) {
+            grow();
+        }
+        type[size] = (byte) tokenType.ordinal();
+        data[size] = value;
+        row[size] = tokenRow;
+        size++;
+    }
+
+    /**
+     * Appends a HEX token whose text ('#' and six letters or digits)
+     * starts at the given offset in chars.
+     */
+    public void addColor(char[] chars, int offset, int tokenRow) {
+        long key = 0;
+        for (int i = 1; i <= 6; i++) {
+            key = (key << 7) | chars[offset + i];  // letters and digits are 7-bit
+        }
+        int index = find(key);
+        if (index < 0) {
+            index = insert(-1 - index, key, new String(chars, offset, 7));
+        }
+        add(TokenType.HEX, index, tokenRow);
+    }
+
+    /**
+     * Appends a HEX token for the given color text.
+     */
+    public void addColor(String text, int tokenRow) {
+        long key = 0;
+        for (int i = 1; i <= 6; i++) {
+            key = (key << 7) | text.charAt(i);
+        }
+        int index = find(key);
+        if (index < 0) {
+            index = insert(-1 - index, key, text);
+        }
+        add(TokenType.HEX, index, tokenRow);
+    }
+
+    /**
+     * Returns the color index for the packed color text, or -1 - slot
+     * for the free slot where it belongs if it has not been seen yet.
+     */
+    private int find(long key) {
+        int mask = colorKeys.length - 1;
+        int slot = slot(key, mask);
+        while (colorIndex[slot] != 0) {
+            if (colorKeys[slot] == key) {
+                return colorIndex[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1 - slot;
+    }
+
+    /**
+     * Adds a new color in the given free slot and returns its index.
+     */
+    private int insert(int slot, long key, String text) {
+        colors.add(text);
+        colorKeys[slot] = key;
+        colorIndex[slot] = colors.size();
+        if (colors.size() * 2 > colorKeys.length) {
+            rehash();
+        }
+        return colors.size() - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TokenType type(int i) {
+        return TYPES[type[i]];
+    }
+
+    public int data(int i) {
+        return data[i];
+    }
+
+    public int row(int i) {
+        return row[i];
+    }
+
+    /**
+     * Returns the color of a HEX token, or null for other tokens.
+     */
+    public String color(int i) {
+        return type[i] == TokenType.HEX.ordinal() ? colors.get(data[i]) : null;
+    }
+
+    /**
+     * Returns a Token object for the token at the given index.
+     */
+    public Token get(int i) {
+        TokenType tokenType = type(i);
+        if (tokenType == TokenType.HEX) {
+            return new Token(tokenType, color(i), row[i]);
+        }
+        return new Token(tokenType, data[i], row[i]);
+    }
+
+    /**
+     * Removes all tokens. Colors seen so far are kept.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    private void grow() {
+        int capacity = type.length * 2;
+        byte[] newType = new byte[capacity];
+        int[] newData = new int[capacity];
+        int[] newRow = new int[capacity];
+        System.arraycopy(type, 0, newType, 0, size);
+        System.arraycopy(data, 0, newData, 0, size);
+        System.arraycopy(row, 0, newRow, 0, size);
+        type = newType;
+        data = newData;
+        row = newRow;
+    }
+
+    private static int slot(long key, int mask) {
+        return (int) (key ^ (key >>> 21)) * 0x9E3779B9 >>> 8 & mask;
+    }
+
+    private void rehash() {
+        long[] oldKeys = colorKeys;
+        int[] oldIndex = colorIndex;
+        colorKeys = new long[oldKeys.length * 2];
+        colorIndex = new int[oldKeys.length * 2];
+        int mask = colorKeys.length - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldIndex[i] != 0) {
+                long key = oldKeys[i];
+                int slot = slot(key, mask);
+                while (colorIndex[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                colorKeys[slot] = key;
+                colorIndex[slot] = oldIndex[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue of tokens from one producer thread to one consumer
+ * thread. Tokens live in parallel arrays used as a ring, and the two
+ * threads coordinate only through the head and tail counters, without
+ * locks. Both sides move tokens in batches, so each counter is
+ * published once per batch rather than once per token.
+ *
+ * A full ring makes the producer wait and an empty one the consumer;
+ * waiting spins briefly and then sleeps in short naps.
+ */
+public class TokenRing {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final byte[] type;     // TokenType ordinal of each token
+    private final int[] data;      // numeric value of each token
+    private final int[] row;       // row of each token
+    private final String[] color;  // color of HEX tokens, else null
+    private final int mask;        // capacity - 1
+
+    private final AtomicLong head = new AtomicLong();  // tokens taken so far (written by the consumer)
+    private final AtomicLong tail = new AtomicLong();  // tokens put so far (written by the producer)
+    private volatile Throwable failure;                // why the producer stopped early, if it did
+
+    /**
+     * Creates a ring holding up to capacity tokens, rounded up to a power of two.
+     */
+    public TokenRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        type = new byte[size];
+        data = new int[size];
+        row = new int[size];
+        color = new String[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Producer side: appends all tokens in batch, waiting for room as needed.
+     */
+    public void put(TokenBuffer batch) {
+        long t = tail.get();
+        int n = batch.size();
+        int i = 0;
+        int spins = 0;
+
+        while (i < n) {
+            int room = (int) (type.length - (t - head.get()));
+            if (room == 0) {
+                idle(spins++);
+                continue;
+            }
+            spins = 0;
+
+            int end = Math.min(n, i + room);
+            for (; i < end; i++, t++) {
+                int slot = (int) t & mask;
+                type[slot] = (byte) batch.type(i).ordinal();
+                data[slot] = batch.data(i);
+                row[slot] = batch.row(i);
+                color[slot] = batch.color(i);
+            }
+            tail.lazySet(t);  // publishes the slots written above
+        }
+    }
+
+    /**
+     * Producer side: records that no more tokens will come because of e.
+     * The consumer gets e once it has taken the tokens put before.
+     */
+    public void fail(Throwable e) {
+        failure = e;
+    }
+
+    /**
+     * Consumer side: moves every token that is ready into out, waiting
+     * until there is at least one.
+     */
+    public void take(TokenBuffer out) {
+        long h = head.get();
+        long t;
+        int spins = 0;
+        while ((t = tail.get()) == h) {
+            Throwable e = failure;
+            if (e != null && tail.get() == h) {
+                rethrow(e);
+            }
+            idle(spins++);
+        }
+
+        for (; h < t; h++) {
+            int slot = (int) h & mask;
+            if (color[slot] != null) {
+                out.addColor(color[slot], row[slot]);
+            } else {
+                out.add(TYPES[type[slot]], data[slot], row[slot]);
+            }
+        }
+        head.lazySet(h);  // hands the slots back to the producer
+    }
+
+    private static void idle(int spins) {
+        if (spins < 256) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(20_000);
+        }
+    }
+
+    private static void rethrow(Throwable e) {
+        if (e instanceof IOException) {
+            throw new UncheckedIOException((IOException) e);
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        throw (RuntimeException) e;
+    }
+}
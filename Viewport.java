@@ -0,0 +1,169 @@
+/**
+ * A rectangular region of the drawing, with its edges included. When
+ * Leona has a viewport, Program skips loop iterations that cannot draw
+ * anything inside it, and a ClippingSegmentSink cuts the segments that
+ * are drawn down to it.
+ */
+public class Viewport {
+    public final double xmin, ymin, xmax, ymax;
+
+    public Viewport(double xmin, double ymin, double xmax, double ymax) {
+        if (!(xmin <= xmax && ymin <= ymax)) {
+            throw new IllegalArgumentException("empty viewport " + xmin + "," + ymin + "," + xmax + "," + ymax);
+        }
+        this.xmin = xmin;
+        this.ymin = ymin;
+        this.xmax = xmax;
+        this.ymax = ymax;
+    }
+
+    /**
+     * Parses a viewport given as "xmin,ymin,xmax,ymax".
+     */
+    public static Viewport parse(String text) {
+        String[] parts = text.split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("viewport must be xmin,ymin,xmax,ymax: " + text);
+        }
+        return new Viewport(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]),
+                Double.parseDouble(parts[2]), Double.parseDouble(parts[3]));
+    }
+
+    /**
+     * Whether something starting at (x, y) and moving at most the given
+     * distance can get into the viewport. Checked against the viewport
+     * grown by the distance on every side, which holds every such point.
+     */
+    public boolean reachable(double x, double y, double distance) {
+        return reachable(x, y, new double[] { -distance, -distance, distance, distance });
+    }
+
+    /**
+     * Whether something starting at (x, y) and staying inside the given
+     * box around it, { minX, minY, maxX, maxY } as offsets from (x, y),
+     * can get into the viewport.
+     */
+    public boolean reachable(double x, double y, double[] box) {
+        return x >= xmin - box[2] && x <= xmax - box[0]
+            && y >= ymin - box[3] && y <= ymax - box[1];
+    }
+
+    /**
+     * Of the points (x + k dx, y + k dy) for whole k from first to last,
+     * returns the range of k for which reachable(..., distance) may hold,
+     * as { from, to }, or null if it holds for none. The range may be a
+     * little wider than needed, but never too narrow.
+     */
+    public long[] reachable(double x, double y, double dx, double dy, double distance, long first, long last) {
+        return reachable(x, y, dx, dy, new double[] { -distance, -distance, distance, distance }, first, last);
+    }
+
+    /**
+     * Like the above, for something staying inside the given box around
+     * each point (see reachable(x, y, box)).
+     */
+    public long[] reachable(double x, double y, double dx, double dy, double[] box, long first, long last) {
+        double[] range = { first, last };
+        if (!slab(range, x, dx, xmin - box[2], xmax - box[0])
+                || !slab(range, y, dy, ymin - box[3], ymax - box[1])) {
+            return null;
+        }
+        // one step of slack on each side for the rounding of the bounds
+        long from = Math.max(first, (long) Math.ceil(range[0]) - 1);
+        long to = Math.min(last, (long) Math.floor(range[1]) + 1);
+        return from <= to ? new long[] { from, to } : null;
+    }
+
+    /**
+     * Narrows range to the values of k for which p + k d lies within
+     * [min, max]; returns false if there are none.
+     */
+    private static boolean slab(double[] range, double p, double d, double min, double max) {
+        if (d == 0) {
+            return p >= min && p <= max;
+        }
+        double t1 = (min - p) / d;
+        double t2 = (max - p) / d;
+        range[0] = Math.max(range[0], Math.min(t1, t2));
+        range[1] = Math.min(range[1], Math.max(t1, t2));
+        return range[0] <= range[1];
+    }
+}
+
+/**
+ * Passes on only the part of each segment inside a viewport, using the
+ * Liang-Barsky algorithm. Segments entirely inside are passed on
+ * unchanged, segments entirely outside are dropped, and the rest are cut
+ * at the edges of the viewport.
+ */
+class ClippingSegmentSink implements SegmentSink {
+    private final SegmentSink target;
+    private final Viewport viewport;
+
+    public long dropped;  // segments entirely outside
+    public long clipped;  // segments cut at an edge
+
+    public ClippingSegmentSink(SegmentSink target, Viewport viewport) {
+        this.target = target;
+        this.viewport = viewport;
+    }
+
+    public void accept(String color, double x1, double y1, double x2, double y2) {
+        Viewport v = viewport;
+        if (x1 >= v.xmin && x1 <= v.xmax && y1 >= v.ymin && y1 <= v.ymax
+                && x2 >= v.xmin && x2 <= v.xmax && y2 >= v.ymin && y2 <= v.ymax) {
+            target.accept(color, x1, y1, x2, y2);
+            return;
+        }
+
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double[] t = { 0, 1 };  // the part of the segment still inside
+        if (clip(t, -dx, x1 - v.xmin) && clip(t, dx, v.xmax - x1)
+                && clip(t, -dy, y1 - v.ymin) && clip(t, dy, v.ymax - y1)) {
+            clipped++;
+            target.accept(color,
+                    t[0] == 0 ? x1 : x1 + t[0] * dx, t[0] == 0 ? y1 : y1 + t[0] * dy,
+                    t[1] == 1 ? x2 : x1 + t[1] * dx, t[1] == 1 ? y2 : y1 + t[1] * dy);
+        } else {
+            dropped++;
+        }
+    }
+
+    /**
+     * Narrows t to where p * t <= q holds; returns false if nothing is left.
+     */
+    private static boolean clip(double[] t, double p, double q) {
+        if (p == 0) {
+            return q >= 0;  // parallel to this edge: inside it or not at all
+        }
+        double r = q / p;
+        if (p < 0) {
+            if (r > t[1]) {
+                return false;
+            }
+            t[0] = Math.max(t[0], r);
+        } else {
+            if (r < t[0]) {
+                return false;
+            }
+            t[1] = Math.min(t[1], r);
+        }
+        return true;
+    }
+
+    public void flush() {
+        target.flush();
+    }
+
+    public SegmentSink fork() {
+        return new ClippingSegmentSink(target.fork(), viewport);
+    }
+
+    public void join(SegmentSink part) {
+        ClippingSegmentSink other = (ClippingSegmentSink) part;
+        target.join(other.target);
+        dropped += other.dropped;
+        clipped += other.clipped;
+    }
+}
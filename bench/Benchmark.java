@@ -0,0 +1,436 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+/**
+ * Throughput benchmarks for the lexer, the parser, the interpreter and
+ * the whole chain, over programs from ProgramGenerator.
+ *
+ *   lex       scan every token of the program
+ *   parse     parse already scanned tokens into a tree
+ *   run       run the compiled program, discarding the segments
+ *   end2end   lex, parse, compile and run, formatting the segments as
+ *             text into a channel that discards them
+ *
+ * Every benchmark is run for each kind of program, each in a JVM of its
+ * own, so the JIT compiler's profile of one does not slow down the next:
+ * first for a warmup period, then for a number of measured periods. For
+ * each it reports operations (whole programs) per second with the error
+ * JMH reports, the half-width of a 99.9% confidence interval of the mean
+ * over the periods, and the bytes allocated per operation, taken from the
+ * per-thread allocation counter.
+ *
+ * Results can also be written as JSON, in the layout JMH uses, so they
+ * can be tracked over time with the same tools. The same benchmarks run
+ * under JMH itself in bench/pom.xml (see jmh/ChainBenchmark.java); this
+ * harness is for when only the JDK is at hand.
+ *
+ * Usage: java Benchmark [--statements N] [--warmup SECONDS] [--time SECONDS]
+ *                       [--iterations N] [--only NAME] [--json FILE]
+ */
+public class Benchmark {
+    private static final String[] BENCHMARKS = { "lex", "parse", "run", "end2end" };
+
+    static volatile long blackhole;  // results go here so the work cannot be optimized away
+
+    private int statements = 20000;
+    private double warmup = 2;      // seconds
+    private double time = 1;        // seconds per measured period
+    private int iterations = 5;     // measured periods
+    private String only;            // run just this benchmark, if set
+    private String json;            // where to write results, if set
+
+    public static void main(String[] args) throws Exception {
+        Benchmark benchmark = new Benchmark();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--statements")) {
+                benchmark.statements = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--warmup")) {
+                benchmark.warmup = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--time")) {
+                benchmark.time = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--iterations")) {
+                benchmark.iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--only")) {
+                benchmark.only = args[++i];
+            } else if (args[i].equals("--json")) {
+                benchmark.json = args[++i];
+            } else if (args[i].equals("--child")) {
+                benchmark.child(args[++i], args[++i]);
+                return;
+            }
+        }
+        benchmark.runAll();
+    }
+
+    /**
+     * Measures one benchmark on one kind of program, in a JVM started by
+     * fork, and prints the result as one line for it to read.
+     */
+    private void child(String name, String kind) throws Exception {
+        String source = ProgramGenerator.generate(kind, statements, 1);
+        Result result = measure(name, kind, operation(name, source));
+        StringBuilder line = new StringBuilder("result ").append(result.allocated);
+        for (double score : result.scores) {
+            line.append(' ').append(score);
+        }
+        System.out.println(line);
+    }
+
+    /**
+     * Runs one benchmark on one kind of program in a new JVM, with the same
+     * class path and settings, and returns what it measured.
+     */
+    private Result fork(String name, String kind) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "Benchmark",
+                "--statements", String.valueOf(statements), "--warmup", String.valueOf(warmup),
+                "--time", String.valueOf(time), "--iterations", String.valueOf(iterations),
+                "--child", name, kind));
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+        String result = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("result ")) {
+                    result = line;
+                }
+            }
+        }
+        if (process.waitFor() != 0 || result == null) {
+            throw new IOException(name + " on " + kind + " failed with exit status " + process.exitValue());
+        }
+
+        String[] words = result.split(" ");
+        double[] scores = new double[words.length - 2];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = Double.parseDouble(words[i + 2]);
+        }
+        Result measured = new Result(name, kind, scores);
+        measured.allocated = Double.parseDouble(words[1]);
+        return measured;
+    }
+
+    private void runAll() throws Exception {
+        List<Result> results = new ArrayList<>();
+        System.out.printf(Locale.ROOT, "%-8s %-9s %12s %10s %10s %14s%n",
+                "bench", "program", "ops/s", "+-99.9%", "MB/s", "alloc B/op");
+
+        for (String name : BENCHMARKS) {
+            if (only != null && !only.equals(name)) {
+                continue;
+            }
+            for (String kind : ProgramGenerator.KINDS) {
+                String source = ProgramGenerator.generate(kind, statements, 1);
+                Result result = fork(name, kind);
+                result.megabytes = source.length() / 1e6;
+                results.add(result);
+                System.out.printf(Locale.ROOT, "%-8s %-9s %12.2f %10.2f %10.2f %14.0f%n",
+                        name, kind, result.score, result.error, result.score * result.megabytes,
+                        result.allocated);
+            }
+        }
+
+        if (json != null) {
+            try (PrintStream out = new PrintStream(json, "UTF-8")) {
+                writeJson(out, results);
+            }
+        }
+    }
+
+    /**
+     * Returns one operation of the named benchmark on a program of the
+     * given kind and size, for other harnesses (see jmh/ChainBenchmark).
+     */
+    public static LongSupplier operation(String name, String kind, int statements) throws Exception {
+        Operation operation = operation(name, ProgramGenerator.generate(kind, statements, 1));
+        return () -> {
+            try {
+                return operation.run();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    /**
+     * Returns one operation of the named benchmark on the given program.
+     * Work that is not part of what is measured is done here, once.
+     */
+    private static Operation operation(String name, String source) throws Exception {
+        byte[] bytes = source.getBytes(Charset.defaultCharset());
+
+        switch (name) {
+            case "lex":
+                return () -> {
+                    Lexer lexer = new Lexer(new StringReader(source));
+                    long n = 0;
+                    while (lexer.peekType() != TokenType.EOF) {
+                        lexer.advance();
+                        n++;
+                    }
+                    return n;
+                };
+            case "parse": {
+                TokenBuffer tokens = new Lexer(new ByteArrayInputStream(bytes)).tokens;
+                return () -> new Parser(new Lexer(tokens)).parse().hashCode();
+            }
+            case "run": {
+                Program program = Program.compile(new Parser(new Lexer(new StringReader(source))).parse());
+                return () -> {
+                    Leona leona = new Leona(0, 0, 0, true, "#0000FF", (color, x1, y1, x2, y2) -> { });
+                    program.run(leona);
+                    return (long) leona.x;
+                };
+            }
+            case "end2end":
+                return () -> {
+                    Lexer lexer = new Lexer(new InputStreamReader(new ByteArrayInputStream(bytes)));
+                    Program program = Program.compile(new Parser(lexer).parse());
+                    SegmentSink sink = new TextSegmentSink(new NullChannel());
+                    program.run(new Leona(0, 0, 0, true, "#0000FF", sink));
+                    sink.flush();
+                    return program.code.length;
+                };
+            default:
+                throw new IllegalArgumentException("unknown benchmark " + name);
+        }
+    }
+
+    /**
+     * Runs the operation for the warmup period and then for each measured
+     * period, and sums up the measured periods.
+     */
+    private Result measure(String name, String kind, Operation operation) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        period(operation, warmup);
+
+        double[] scores = new double[iterations];
+        long operations = 0;
+        long allocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            long count = period(operation, time);
+            long elapsed = System.nanoTime() - start;
+            allocated += threads.getThreadAllocatedBytes(thread) - before;
+            operations += count;
+            scores[i] = count / (elapsed / 1e9);
+        }
+
+        Result result = new Result(name, kind, scores);
+        result.allocated = (double) allocated / operations;
+        return result;
+    }
+
+    /**
+     * Runs the operation over and over for about the given time and
+     * returns how many times it ran.
+     */
+    private static long period(Operation operation, double seconds) throws Exception {
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        long count = 0;
+        long sum = 0;
+        do {
+            sum += operation.run();
+            count++;
+        } while (System.nanoTime() < end);
+        blackhole += sum;
+        return count;
+    }
+
+    private void writeJson(PrintStream out, List<Result> results) {
+        out.println("[");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            out.println("    {");
+            out.println("        \"benchmark\" : \"Benchmark." + r.name + "\",");
+            out.println("        \"mode\" : \"thrpt\",");
+            out.println("        \"threads\" : 1,");
+            out.println("        \"warmupTime\" : \"" + warmup + " s\",");
+            out.println("        \"measurementIterations\" : " + iterations + ",");
+            out.println("        \"measurementTime\" : \"" + time + " s\",");
+            out.println("        \"params\" : { \"program\" : \"" + r.kind + "\", \"statements\" : \""
+                    + statements + "\" },");
+            out.println("        \"primaryMetric\" : {");
+            out.printf(Locale.ROOT, "            \"score\" : %.6f,%n", r.score);
+            if (Double.isNaN(r.error)) {
+                out.println("            \"scoreError\" : \"NaN\",");  // as JMH writes it
+            } else {
+                out.printf(Locale.ROOT, "            \"scoreError\" : %.6f,%n", r.error);
+            }
+            out.println("            \"scoreUnit\" : \"ops/s\",");
+            out.print("            \"rawData\" : [ [ ");
+            for (int j = 0; j < r.scores.length; j++) {
+                out.printf(Locale.ROOT, j == 0 ? "%.6f" : ", %.6f", r.scores[j]);
+            }
+            out.println(" ] ]");
+            out.println("        },");
+            out.println("        \"secondaryMetrics\" : {");
+            out.println("            \"gc.alloc.rate.norm\" : {");
+            out.printf(Locale.ROOT, "                \"score\" : %.3f,%n", r.allocated);
+            out.println("                \"scoreUnit\" : \"B/op\"");
+            out.println("            },");
+            out.println("            \"input.rate\" : {");
+            out.printf(Locale.ROOT, "                \"score\" : %.3f,%n", r.score * r.megabytes);
+            out.println("                \"scoreUnit\" : \"MB/s\"");
+            out.println("            }");
+            out.println("        }");
+            out.println(i == results.size() - 1 ? "    }" : "    },");
+        }
+        out.println("]");
+    }
+
+    /**
+     * One measured operation; returns something derived from its result.
+     */
+    private interface Operation {
+        long run() throws Exception;
+    }
+
+    /**
+     * The measurements of one benchmark on one kind of program.
+     */
+    private static class Result {
+        final String name;
+        final String kind;
+        final double[] scores;  // ops/s of each measured period
+        final double score;     // their mean
+        final double error;     // half-width of its 99.9% confidence interval, NaN for one period
+        double allocated;       // bytes allocated per operation
+        double megabytes;       // size of the program
+
+        Result(String name, String kind, double[] scores) {
+            this.name = name;
+            this.kind = kind;
+            this.scores = scores;
+            double sum = 0;
+            for (double s : scores) {
+                sum += s;
+            }
+            score = sum / scores.length;
+            double squares = 0;
+            for (double s : scores) {
+                squares += (s - score) * (s - score);
+            }
+            int n = scores.length;
+            error = n > 1 ? studentQuantile(0.9995, n - 1) * Math.sqrt(squares / (n - 1)) / Math.sqrt(n) : Double.NaN;
+        }
+    }
+
+    /**
+     * The p quantile (p above 0.5) of Student's t distribution with the
+     * given degrees of freedom, found by bisection on its distribution
+     * function. This is the factor JMH uses for its confidence intervals.
+     */
+    static double studentQuantile(double p, int freedom) {
+        double low = 0;
+        double high = 1;
+        while (studentDistribution(high, freedom) < p) {
+            low = high;
+            high *= 2;
+        }
+        for (int i = 0; i < 100; i++) {
+            double middle = (low + high) / 2;
+            if (studentDistribution(middle, freedom) < p) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return (low + high) / 2;
+    }
+
+    /**
+     * P(T <= t) for t >= 0 and Student's t distribution.
+     */
+    private static double studentDistribution(double t, int freedom) {
+        return 1 - 0.5 * incompleteBeta(freedom / (freedom + t * t), freedom / 2.0, 0.5);
+    }
+
+    /**
+     * The regularized incomplete beta function I_x(a, b), from its
+     * continued fraction (evaluated with Lentz's method).
+     */
+    private static double incompleteBeta(double x, double a, double b) {
+        if (x <= 0 || x >= 1) {
+            return x <= 0 ? 0 : 1;
+        }
+        double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b)
+                + a * Math.log(x) + b * Math.log(1 - x));
+        if (x > (a + 1) / (a + b + 2)) {
+            return 1 - incompleteBeta(1 - x, b, a);
+        }
+        double tiny = 1e-300;
+        double c = 1;
+        double d = 1 - (a + b) * x / (a + 1);
+        d = 1 / (Math.abs(d) < tiny ? tiny : d);
+        double f = d;
+        for (int m = 1; m <= 300; m++) {
+            for (int step = 0; step < 2; step++) {
+                double term = step == 0
+                    ? m * (b - m) * x / ((a + 2 * m - 1) * (a + 2 * m))
+                    : -(a + m) * (a + b + m) * x / ((a + 2 * m) * (a + 2 * m + 1));
+                d = 1 + term * d;
+                d = 1 / (Math.abs(d) < tiny ? tiny : d);
+                c = 1 + term / c;
+                c = Math.abs(c) < tiny ? tiny : c;
+                f *= c * d;
+            }
+            if (Math.abs(c * d - 1) < 1e-15) {
+                break;
+            }
+        }
+        return front * f / a;
+    }
+
+    /**
+     * The logarithm of the gamma function, by Lanczos' approximation.
+     */
+    private static double logGamma(double x) {
+        double[] coefficients = { 76.18009172947146, -86.50532032941677, 24.01409824083091,
+            -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5 };
+        double sum = 1.000000000190015;
+        for (int i = 0; i < coefficients.length; i++) {
+            sum += coefficients[i] / (x + 1 + i);
+        }
+        double t = x + 5.5;
+        return (x + 0.5) * Math.log(t) - t + Math.log(2.5066282746310005 * sum / x);
+    }
+
+    /**
+     * A channel that throws away everything written to it.
+     */
+    private static class NullChannel implements WritableByteChannel {
+        public int write(ByteBuffer bytes) {
+            int n = bytes.remaining();
+            bytes.position(bytes.limit());
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+}
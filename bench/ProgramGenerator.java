@@ -0,0 +1,148 @@
+import java.util.Random;
+
+/**
+ * Generates programs for benchmarking, of roughly a given number of
+ * statements. The same kind, size and seed always give the same program.
+ *
+ *   flat      one long run of moves, turns and pen changes
+ *   nested    REP blocks nested DEPTH deep, each repeating twice, so the
+ *             innermost statements run 2^DEPTH times per block
+ *   comments  a comment after every statement, some of them holding
+ *             commented-out code
+ *   colors    mostly COLOR statements with many distinct colors, keywords
+ *             in mixed case
+ *   mixed     all of the above in random order
+ *
+ * Usage: java ProgramGenerator KIND STATEMENTS [SEED] > program.txt
+ */
+public class ProgramGenerator {
+    public static final String[] KINDS = { "flat", "nested", "comments", "colors", "mixed" };
+
+    private static final int DEPTH = 8;  // nesting depth of the nested kind
+
+    private final Random random;
+    private final StringBuilder out = new StringBuilder();
+    private int row;  // for occasional line breaks
+
+    private ProgramGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    public static void main(String[] args) {
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        System.out.print(generate(args[0], Integer.parseInt(args[1]), seed));
+    }
+
+    /**
+     * Returns a program of the given kind with about the given number of statements.
+     */
+    public static String generate(String kind, int statements, long seed) {
+        ProgramGenerator generator = new ProgramGenerator(seed);
+        generator.out.append("DOWN.\n");
+        int written = 0;
+        while (written < statements) {
+            written += generator.block(kind);
+        }
+        return generator.out.toString();
+    }
+
+    /**
+     * Writes a block of statements of the given kind and returns how many.
+     */
+    private int block(String kind) {
+        switch (kind) {
+            case "flat":
+                return flat(64);
+            case "nested":
+                return nested();
+            case "comments":
+                return comments(32);
+            case "colors":
+                return colors(32);
+            case "mixed":
+                return block(KINDS[random.nextInt(KINDS.length - 1)]);
+            default:
+                throw new IllegalArgumentException("unknown kind " + kind);
+        }
+    }
+
+    private int flat(int count) {
+        for (int i = 0; i < count; i++) {
+            statement();
+        }
+        return count;
+    }
+
+    private int nested() {
+        for (int depth = 0; depth < DEPTH; depth++) {
+            out.append("REP 2 \"");
+            statement();
+        }
+        for (int depth = 0; depth < DEPTH; depth++) {
+            out.append('"');
+        }
+        newline();
+        return 2 * DEPTH;
+    }
+
+    private int comments(int count) {
+        for (int i = 0; i < count; i++) {
+            statement();
+            out.append("% ");
+            for (int j = random.nextInt(60); j > 0; j--) {
+                out.append((char) ('a' + random.nextInt(26)));
+            }
+            if (random.nextInt(4) == 0) {
+                out.append(" FORW 10. REP 3 \" % #FFFFFF");  // commented-out code
+            }
+            out.append('\n');
+        }
+        return count;
+    }
+
+    private int colors(int count) {
+        for (int i = 0; i < count; i++) {
+            if (random.nextInt(4) == 0) {
+                statement();
+            } else {
+                out.append(random.nextBoolean() ? "COLOR #" : "cOlOr #");
+                out.append(String.format("%06X", random.nextInt(1 << 24)));
+                out.append(". ");
+            }
+        }
+        newline();
+        return count;
+    }
+
+    private void statement() {
+        int n = 1 + random.nextInt(99);
+        switch (random.nextInt(8)) {
+            case 0: case 1: case 2:
+                out.append("FORW ").append(n).append(". ");
+                break;
+            case 3:
+                out.append("BACK ").append(n).append(". ");
+                break;
+            case 4:
+                out.append("LEFT ").append(n).append(". ");
+                break;
+            case 5:
+                out.append("RIGHT ").append(n).append(". ");
+                break;
+            case 6:
+                out.append(random.nextBoolean() ? "UP. " : "DOWN. ");
+                break;
+            default:
+                out.append("REP ").append(1 + random.nextInt(9)).append(" \"FORW ").append(n)
+                   .append(". LEFT ").append(n).append(".\" ");
+                break;
+        }
+        if (++row % 8 == 0) {
+            newline();
+        }
+    }
+
+    private void newline() {
+        out.append('\n');
+    }
+}
@@ -0,0 +1,80 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The benchmarks of Benchmark (lex, parse, run and end2end) under JMH,
+ * for each kind of program from ProgramGenerator. JMH runs every
+ * benchmark and program kind in JVMs of their own, and reports scoreError
+ * as the half-width of a 99.9% confidence interval.
+ *
+ * JMH does not allow benchmarks in the default package, and classes in a
+ * named package cannot refer to the interpreter's, so the operations are
+ * taken from Benchmark.operation through reflection, once per trial.
+ * Both harnesses thus measure exactly the same code.
+ *
+ *   mvn -B install -DskipTests
+ *   mvn -B -f bench/pom.xml package
+ *   java -jar bench/target/benchmarks.jar -prof gc -rf json
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ChainBenchmark {
+    @Param({ "flat", "nested", "comments", "colors", "mixed" })
+    public String program;
+
+    @Param({ "20000" })
+    public int statements;
+
+    private LongSupplier lex, parse, run, end2end;
+
+    @Setup
+    public void setup() throws Exception {
+        lex = operation("lex");
+        parse = operation("parse");
+        run = operation("run");
+        end2end = operation("end2end");
+    }
+
+    private LongSupplier operation(String name) throws Exception {
+        return (LongSupplier) Class.forName("Benchmark")
+                .getMethod("operation", String.class, String.class, int.class)
+                .invoke(null, name, program, statements);
+    }
+
+    @Benchmark
+    public long lex() {
+        return lex.getAsLong();
+    }
+
+    @Benchmark
+    public long parse() {
+        return parse.getAsLong();
+    }
+
+    @Benchmark
+    public long run() {
+        return run.getAsLong();
+    }
+
+    @Benchmark
+    public long end2end() {
+        return end2end.getAsLong();
+    }
+}
@@ -0,0 +1,67 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BatchTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void deeplyNestedFileFailsAlone() throws Exception {
+        Path first = write("a.txt", "DOWN. FORW 1. LEFT 90. FORW 1.");
+        Path deep = write("b.txt", "REP 2 ".repeat(200000) + "FORW 1.");
+        Path syntax = write("c.txt", "DOWN. FORW.");
+        Path last = write("d.txt", "DOWN. REP 3 \"FORW 1. LEFT 120.\"");
+        Path outputs = Files.createDirectory(directory.resolve("out"));
+
+        List<Batch.Result> results = new Batch(outputs, false)
+            .run(List.of(first, deep, syntax, last), new ForkJoinPool(2));
+
+        assertEquals(4, results.size());
+        assertNull(results.get(0).error);
+        assertEquals(2, results.get(0).segments);
+        assertEquals(deep, results.get(1).file);
+        assertTrue(results.get(1).error.contains("StackOverflowError"), results.get(1).error);
+        assertFalse(results.get(1).syntaxError);
+        assertTrue(results.get(2).syntaxError);
+        assertNull(results.get(3).error);
+        assertEquals(3, results.get(3).segments);
+        assertEquals(3, Files.readAllLines(outputs.resolve("d.txt.out")).size());
+    }
+
+    @Test
+    void countingSinkJoinsItsTargetWhenRunInParallel() throws Exception {
+        Program program = Program.compile(new Parser(new Lexer(new StringReader(
+            "DOWN. REP 500 \"FORW 3. LEFT 7. COLOR #00FF00. FORW 1. RIGHT 2.\""))).parse());
+
+        ByteArrayOutputStream serial = new ByteArrayOutputStream();
+        SegmentSink plain = new TextSegmentSink(Channels.newChannel(serial));
+        program.run(new Leona(0, 0, 0, true, "#0000FF", plain));
+        plain.flush();
+
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        CountingSegmentSink counting = new CountingSegmentSink(new TextSegmentSink(Channels.newChannel(parallel)));
+        program.run(new Leona(0, 0, 0, true, "#0000FF", counting), new ForkJoinPool(4));
+        counting.flush();
+
+        assertEquals(1000, counting.segments);
+        assertArrayEquals(serial.toByteArray(), parallel.toByteArray());
+    }
+
+    private Path write(String name, String program) throws Exception {
+        return Files.writeString(directory.resolve(name), program);
+    }
+}
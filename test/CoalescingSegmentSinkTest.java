@@ -0,0 +1,52 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class CoalescingSegmentSinkTest {
+    @Test
+    void retracedSegmentIsDroppedAndStraightRunIsMerged() {
+        ListSegmentSink out = new ListSegmentSink();
+        CoalescingSegmentSink sink = new CoalescingSegmentSink(out);
+        sink.accept("#0000FF", 0, 0, 1, 0);
+        sink.accept("#0000FF", 1, 0, 2, 0);  // goes on in the same direction
+        sink.accept("#0000FF", 2, 0, 1, 0);  // back over the second one
+        sink.accept("#FF0000", 1, 0, 2, 0);  // the same line in another color
+        sink.flush();
+
+        assertEquals(List.of("#0000FF 0.0 0.0 2.0 0.0", "#FF0000 1.0 0.0 2.0 0.0"), lines(out));
+        assertEquals(1, sink.duplicates);
+        assertEquals(1, sink.merged);
+    }
+
+    @Test
+    void endpointsRoundedToTheQuantumAreTheSame() {
+        ListSegmentSink out = new ListSegmentSink();
+        CoalescingSegmentSink sink = new CoalescingSegmentSink(out);
+        sink.accept("#0000FF", 0, 0, 0.1 + 0.2, 0);
+        sink.accept("#0000FF", 0.3, -0.0, 1e-9, 0);
+        sink.flush();
+
+        assertEquals(1, out.segments.size());
+        assertEquals(1, sink.duplicates);
+    }
+
+    @Test
+    void farApartSegmentsFarFromTheOriginAreKept() throws Exception {
+        ListSegmentSink out = new ListSegmentSink();
+        CoalescingSegmentSink sink = new CoalescingSegmentSink(out);
+        Program.compile(new Parser(new Lexer(new StringReader(
+            "UP. FORW 2000000000. REP 5000 \"FORW 2000000000.\" DOWN. FORW 1. UP. FORW 5. DOWN. FORW 1."))).parse())
+            .run(new Leona(0, 0, 0, true, "#0000FF", sink));
+        sink.flush();
+
+        assertEquals(2, out.segments.size());
+        assertEquals(0, sink.duplicates);
+    }
+
+    private static List<String> lines(ListSegmentSink sink) {
+        return sink.segments.stream().map(Segment::toString).toList();
+    }
+}
@@ -0,0 +1,141 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProgramCacheTest {
+    private static final byte[] TEXT =
+        "DOWN. COLOR #FF0000. REP 3 \"FORW 1. LEFT 90.\" REP 2 \"REP 4 \"FORW 2. RIGHT 45.\"\"".getBytes();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void storedProgramIsFoundByAnotherCache() throws Exception {
+        new ProgramCache(1 << 20, directory).compile(TEXT);
+        ProgramCache cache = new ProgramCache(1 << 20, directory);
+        assertEquals(segments(new ProgramCache(1 << 20, null).compile(TEXT)), segments(cache.compile(TEXT)));
+        assertEquals(1, cache.diskHits());
+    }
+
+    @Test
+    void failedSaveLeavesNoTemporaryFile() throws Exception {
+        // a directory where the file should go makes the rename fail
+        String key = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(TEXT));
+        Files.createFile(Files.createDirectory(directory.resolve(key)).resolve("in the way"));
+
+        ProgramCache cache = new ProgramCache(1 << 20, directory);
+        assertEquals(segments(new ProgramCache(1 << 20, null).compile(TEXT)), segments(cache.compile(TEXT)));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(List.of(directory.resolve(key)), files.toList());
+        }
+    }
+
+    @Test
+    void truncatedFileIsAMiss() throws Exception {
+        assertMiss(bytes -> Arrays.copyOf(bytes, bytes.length / 2));
+    }
+
+    @Test
+    void hugeColorCountIsAMiss() throws Exception {
+        assertMiss(bytes -> ByteBuffer.wrap(bytes).putInt(12, Integer.MAX_VALUE).array());
+    }
+
+    @Test
+    void negativeColorCountIsAMiss() throws Exception {
+        assertMiss(bytes -> ByteBuffer.wrap(bytes).putInt(12, -1).array());
+    }
+
+    @Test
+    void hugeCodeLengthIsAMiss() throws Exception {
+        assertMiss(bytes -> ByteBuffer.wrap(bytes).putInt(codeStart(bytes) - 4, Integer.MAX_VALUE).array());
+    }
+
+    @Test
+    void tooSmallLoopDepthIsAMiss() throws Exception {
+        assertMiss(bytes -> ByteBuffer.wrap(bytes).putInt(8, 0).array());
+    }
+
+    @Test
+    void hugeLoopDepthIsAMiss() throws Exception {
+        assertMiss(bytes -> ByteBuffer.wrap(bytes).putInt(8, Integer.MAX_VALUE).array());
+    }
+
+    @Test
+    void badOpcodeIsAMiss() throws Exception {
+        assertMiss(bytes -> {
+            bytes[codeStart(bytes)] = 0x7E;
+            return bytes;
+        });
+    }
+
+    @Test
+    void badJumpIsAMiss() throws Exception {
+        assertMiss(bytes -> {
+            bytes[bytes.length - 1] ^= 0x02;  // the body operand of the last LOOP_END
+            return bytes;
+        });
+    }
+
+    private interface Damage {
+        byte[] apply(byte[] bytes);
+    }
+
+    /**
+     * Stores the program, damages its file, and checks that another cache
+     * compiles it again, correctly, and stores it again for the next one.
+     */
+    private void assertMiss(Damage damage) throws Exception {
+        new ProgramCache(1 << 20, directory).compile(TEXT);
+        Path file = stored();
+        Files.write(file, damage.apply(Files.readAllBytes(file)));
+
+        ProgramCache cache = new ProgramCache(1 << 20, directory);
+        assertEquals(segments(new ProgramCache(1 << 20, null).compile(TEXT)), segments(cache.compile(TEXT)));
+        assertEquals(0, cache.diskHits());
+        assertEquals(1, cache.misses());
+
+        ProgramCache next = new ProgramCache(1 << 20, directory);
+        next.compile(TEXT);
+        assertEquals(1, next.diskHits());
+    }
+
+    private Path stored() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> !file.toString().endsWith(".tmp")).findFirst().orElseThrow();
+        }
+    }
+
+    /**
+     * Offset of the first code word: after the header, the colors and the
+     * code length (see Program.write).
+     */
+    private static int codeStart(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int offset = 16;
+        for (int i = buffer.getInt(12); i > 0; i--) {
+            offset += 2 + buffer.getShort(offset);
+        }
+        return offset + 4;
+    }
+
+    private static String segments(Program program) {
+        ListSegmentSink sink = new ListSegmentSink();
+        program.run(new Leona(0, 0, 0, true, "#0000FF", sink));
+        StringBuilder text = new StringBuilder();
+        for (Segment segment : sink.segments) {
+            text.append(segment).append('\n');
+        }
+        return text.toString();
+    }
+}
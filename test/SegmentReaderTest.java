@@ -0,0 +1,51 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+
+import org.junit.jupiter.api.Test;
+
+class SegmentReaderTest {
+    private static final String[] COLORS = { "#0000FF", "#FF0000" };
+
+    @Test
+    void readsWhatWasWritten() throws IOException {
+        ListSegmentSink out = new ListSegmentSink();
+        new SegmentReader(Channels.newChannel(new ByteArrayInputStream(written()))).read(out);
+        assertEquals(2, out.segments.size());
+        assertEquals("#FF0000 1.0 0.0 1.0 2.0", out.segments.get(1).toString());
+    }
+
+    @Test
+    void badPaletteIndexIsAnIOException() {
+        assertBad(7, "bad palette index 7");
+        assertBad(-1, "bad palette index -1");
+    }
+
+    /**
+     * Writes two segments, changes the palette index of the second, and
+     * checks that reading fails with the given message.
+     */
+    private static void assertBad(int index, String message) {
+        byte[] bytes = written();
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(bytes.length - 36, index);
+        IOException e = assertThrows(IOException.class, () ->
+            new SegmentReader(Channels.newChannel(new ByteArrayInputStream(bytes))).read(new ListSegmentSink()));
+        assertTrue(e.getMessage().startsWith(message), e.getMessage());
+    }
+
+    private static byte[] written() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinarySegmentSink sink = new BinarySegmentSink(Channels.newChannel(bytes), COLORS, false);
+        sink.accept("#0000FF", 0, 0, 1, 0);
+        sink.accept("#FF0000", 1, 0, 1, 2);
+        sink.flush();
+        return bytes.toByteArray();
+    }
+}
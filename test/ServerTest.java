@@ -0,0 +1,105 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ServerTest {
+    private static final int MAX_REQUEST = 4 << 20;
+
+    private Server server;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = new Server(Server.address(null, 0), 1, false, new ProgramCache(1 << 20, null), MAX_REQUEST);
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                // closed by stop
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        server.close();
+    }
+
+    @Test
+    void deeplyNestedProgramFailsAloneAndTheConnectionGoesOn() throws IOException {
+        try (SocketChannel channel = SocketChannel.open(server.address())) {
+            send(channel, "REP 2 ".repeat(200000) + "FORW 1.");
+            Frame failure = receive(channel);
+            assertEquals(Server.FAILURE, failure.kind);
+            assertTrue(failure.text.contains("StackOverflowError"), failure.text);
+
+            send(channel, "DOWN. FORW 1.");
+            Frame output = receive(channel);
+            assertEquals(Server.OUTPUT, output.kind);
+            assertEquals(Server.DONE, receive(channel).kind);
+        }
+    }
+
+    @Test
+    void oversizedRequestIsRefused() throws IOException {
+        assertRefused(MAX_REQUEST + 1);
+        assertRefused(Integer.MAX_VALUE);
+    }
+
+    @Test
+    void negativeLengthIsRefused() throws IOException {
+        assertRefused(-1);
+    }
+
+    /**
+     * Sends only a length prefix and checks that it is answered with
+     * FAILURE and the connection is closed.
+     */
+    private void assertRefused(int length) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(server.address())) {
+            ByteBuffer header = ByteBuffer.allocate(4).putInt(length).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            assertEquals(Server.FAILURE, receive(channel).kind);
+            assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+        }
+    }
+
+    private static void send(SocketChannel channel, String program) throws IOException {
+        byte[] text = program.getBytes();
+        ByteBuffer request = ByteBuffer.allocate(4 + text.length).putInt(text.length).put(text).flip();
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+    }
+
+    private static Frame receive(SocketChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(5);
+        assertTrue(Server.readFully(channel, header), "connection closed before a frame");
+        header.flip();
+        byte kind = header.get();
+        ByteBuffer payload = ByteBuffer.allocate(header.getInt());
+        Server.readFully(channel, payload);
+        return new Frame(kind, new String(payload.array(), StandardCharsets.UTF_8));
+    }
+
+    private static class Frame {
+        final byte kind;
+        final String text;
+
+        Frame(byte kind, String text) {
+            this.kind = kind;
+            this.text = text;
+        }
+    }
+}